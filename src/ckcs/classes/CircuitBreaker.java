@@ -0,0 +1,73 @@
+package ckcs.classes;
+
+//Tracks whether a member's endpoint is worth trying
+//after FAILURE_THRESHOLD sends fail in a row the breaker OPENS and sends are skipped (the frames wait in the
+//member's queue) until the cool-down ends -- then ONE trial send is let through (HALF_OPEN)
+//a success closes it again, a failure re-opens it with a doubled cool-down
+public class CircuitBreaker {
+
+    public static final int FAILURE_THRESHOLD = 3;
+    public static final long BASE_OPEN_MILLIS = 1000;
+    public static final long MAX_OPEN_MILLIS = 30000;
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openMillis = BASE_OPEN_MILLIS;
+    private long openUntil;
+
+    //true if a send may go out now -- moves an expired OPEN breaker to HALF_OPEN
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() >= openUntil) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                return false; //the HALF_OPEN trial is already out
+        }
+    }
+
+    //open and still cooling down -- the endpoint is known to be dead
+    public synchronized boolean isOpen() {
+        return state == State.OPEN && System.currentTimeMillis() < openUntil;
+    }
+
+    //how long until allowRequest() can next succeed, 0 if it can now
+    public synchronized long retryDelayMillis() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, openUntil - System.currentTimeMillis());
+    }
+
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        openMillis = BASE_OPEN_MILLIS;
+    }
+
+    public synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN) {
+            openMillis = Math.min(openMillis * 2, MAX_OPEN_MILLIS);
+            open();
+        } else if (failures >= FAILURE_THRESHOLD) {
+            open();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntil = System.currentTimeMillis() + openMillis;
+    }
+}
@@ -0,0 +1,240 @@
+package ckcs.classes;
+
+import ckcs.interfaces.RequestCode;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.SecretKey;
+
+//Owns the group key when the group is split over several GroupController nodes
+//each node holds ONE top-level subtree of the key tree (its own LogicalTree, under a root code handed out here)
+//and does the joins, leaves and fan-out for its own members -- the coordinator only orders the GK changes:
+//every epoch is decided here and sent to every node in the same order, so all nodes agree on the GK per epoch
+//it never sees a member, a member key or a group message body beyond passing relay batches on
+public class ClusterCoordinator {
+
+    final private Security.SignedKey signedKey;
+    final private PrivateKey privKey;
+    final private List<Node> nodes;
+    final private Set<String> rootCodes; //taken by a node, codes are never reused
+    final private Random random;
+    final private ExecutorService workers;
+    final private int codeDigits;
+
+    private long epoch;
+    private SecretKey groupKey;
+    private int nextNodeID;
+
+    public ClusterCoordinator(int port) {
+        this(port, 3);
+    }
+
+    //codeDigits is the length of the root code of every node's subtree
+    public ClusterCoordinator(int port, int codeDigits) {
+        KeyPair keyPair = Security.generateKeyPair();
+        this.privKey = keyPair.getPrivate();
+        this.signedKey = Security.obtainTrustedSigned(keyPair.getPublic());
+        this.nodes = new CopyOnWriteArrayList<>();
+        this.rootCodes = new HashSet<>();
+        this.random = new Random();
+        this.workers = Executors.newCachedThreadPool();
+        this.codeDigits = codeDigits;
+        this.groupKey = Security.generateRandomKey();
+        workers.execute(new Server(port));
+    }
+
+    public synchronized long getEpoch() {
+        return epoch;
+    }
+
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    //a root code no other node has, same digit range as LogicalTree's own root codes
+    private String newRootCode() {
+        int low = (int)Math.pow(10, codeDigits - 1);
+        String code;
+        do {
+            code = Integer.toString(low + random.nextInt(9 * low));
+        } while (!rootCodes.add(code));
+        return code;
+    }
+
+    private synchronized void register(Node node) throws IOException {
+        node.nodeID = nextNodeID++;
+        String rootCode = newRootCode();
+        byte[] GK = groupKey.getEncoded();
+        ByteBuffer buffer = ByteBuffer.allocate(4 + WireCodec.stringSize(rootCode) + 8 + GK.length);
+        buffer.putInt(node.nodeID);
+        WireCodec.putString(buffer, rootCode);
+        buffer.putLong(epoch);
+        buffer.put(GK);
+        node.send(RequestCode.CLUSTER_REGISTER, buffer.array());
+        nodes.add(node); //from here on it gets every epoch
+        Logger.getLogger(ClusterCoordinator.class.getName()).log(Level.INFO,
+                "Node {0} registered with root code {1}", new Object[] {node.nodeID, rootCode});
+    }
+
+    //a batch of joins on one node -- GK is hashed, same as in a single controller
+    private synchronized void joinEpoch(Node origin) {
+        groupKey = Security.updateKey(groupKey);
+        epoch++;
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 4);
+        buffer.putLong(epoch);
+        buffer.putInt(origin.nodeID);
+        broadcast(RequestCode.ROOT_KEY_JOIN, buffer.array(), null);
+    }
+
+    //a leave on one node -- new random GK, each node encrypts it for its own members
+    private synchronized void leaveEpoch(Node origin) {
+        groupKey = Security.generateRandomKey();
+        epoch++;
+        byte[] GK = groupKey.getEncoded();
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 4 + GK.length);
+        buffer.putLong(epoch);
+        buffer.putInt(origin.nodeID);
+        buffer.put(GK);
+        broadcast(RequestCode.ROOT_KEY_LEAVE, buffer.array(), null);
+    }
+
+    private void relay(Node origin, byte[] batch) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + batch.length);
+        buffer.putInt(origin.nodeID);
+        buffer.put(batch);
+        broadcast(RequestCode.CLUSTER_RELAY, buffer.array(), origin);
+    }
+
+    //a node that can't be written to is dropped, its members are cut off from further GK changes
+    private void broadcast(int code, byte[] payload, Node except) {
+        for (Node node : nodes) {
+            if (node == except) {
+                continue;
+            }
+            try {
+                node.send(code, payload);
+            } catch (IOException ex) {
+                Logger.getLogger(ClusterCoordinator.class.getName()).log(Level.SEVERE,
+                        "Lost node " + node.nodeID, ex);
+                nodes.remove(node);
+                node.close();
+            }
+        }
+    }
+
+    private class Server implements Runnable {
+        final int port;
+
+        private Server(int port) {
+            this.port = port;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ServerSocket server = new ServerSocket();
+                server.setReuseAddress(true);
+                server.bind(new InetSocketAddress(port));
+                while (true) {
+                    Socket socket = server.accept();
+                    workers.execute(new Node(socket));
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(ClusterCoordinator.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    //one connected controller node -- reads its requests in order, writes are shared with broadcast
+    private class Node implements Runnable {
+        final Socket socket;
+        DataOutputStream out;
+        SecretKey sessionKey;
+        int nodeID;
+
+        private Node(Socket socket) {
+            this.socket = socket;
+        }
+
+        private void send(int code, byte[] payload) throws IOException {
+            byte[] encrypted = Security.AESEncrypt(sessionKey, payload);
+            synchronized (this) {
+                WireCodec.writeHeader(out, code);
+                WireCodec.writeBytes(out, encrypted);
+                out.flush();
+            }
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                Logger.getLogger(ClusterCoordinator.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                if (WireCodec.readHeader(in) != RequestCode.CLUSTER_REGISTER) {
+                    close();
+                    return;
+                }
+                //same authentication as a member join -- both sides show a trusted signed key
+                WireCodec.writeSignedKey(out, signedKey);
+                out.flush();
+                Security.SignedKey signed = WireCodec.readSignedKey(in);
+                if (!Security.verifyTrustedSigned(signed)) {
+                    Logger.getLogger(ClusterCoordinator.class.getName()).log(Level.WARNING,
+                            "Controller node cannot be trusted! Refuse connection!");
+                    close();
+                    return;
+                }
+                sessionKey = Security.ECDHKeyAgreement(in, out, signed.getKey(), privKey);
+                register(this);
+                int code;
+                while ((code = WireCodec.readHeaderOrEnd(in)) != -1) {
+                    byte[] payload = Security.AESDecrypt(sessionKey, WireCodec.readBytes(in));
+                    switch (code) {
+                        case RequestCode.ROOT_KEY_JOIN:
+                            joinEpoch(this);
+                            break;
+                        case RequestCode.ROOT_KEY_LEAVE:
+                            leaveEpoch(this);
+                            break;
+                        case RequestCode.CLUSTER_RELAY:
+                            relay(this, payload);
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(ClusterCoordinator.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                nodes.remove(this);
+                close();
+            }
+        }
+    }
+}
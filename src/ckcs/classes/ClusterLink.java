@@ -0,0 +1,147 @@
+package ckcs.classes;
+
+import ckcs.interfaces.RequestCode;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.PrivateKey;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+//A controller node's connection to the ClusterCoordinator
+//GK changes are REQUESTED here and APPLIED when the coordinator sends them back, in the coordinator's order --
+//so a node applies its own epochs and the other nodes' epochs in the one order every node sees
+public class ClusterLink implements Runnable {
+
+    //called on the link's reader thread, one epoch at a time, in epoch order
+    public interface Listener {
+        void joinEpoch(long epoch, boolean ours);
+        void leaveEpoch(long epoch, boolean ours, SecretKey groupKey);
+        void relayed(byte[] batch);
+    }
+
+    final private Socket socket;
+    final private DataInputStream in;
+    final private DataOutputStream out;
+    final private SecretKey sessionKey;
+    final private int nodeID;
+    final private String rootCode;
+    final private long epoch;
+    final private SecretKey groupKey;
+    private Listener listener;
+
+    //connects and registers, blocks until the coordinator has given this node its subtree and the current GK
+    public ClusterLink(InetAddress address, int port, Security.SignedKey signedKey, PrivateKey privKey) throws IOException {
+        this.socket = new Socket(address, port);
+        socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        WireCodec.writeHeader(out, RequestCode.CLUSTER_REGISTER);
+        WireCodec.writeSignedKey(out, signedKey);
+        out.flush();
+        Security.SignedKey signed = WireCodec.readSignedKey(in);
+        if (!Security.verifyTrustedSigned(signed)) {
+            socket.close();
+            throw new IOException("Cluster coordinator cannot be trusted!");
+        }
+        this.sessionKey = Security.ECDHKeyAgreement(in, out, signed.getKey(), privKey);
+        if (WireCodec.readHeader(in) != RequestCode.CLUSTER_REGISTER) {
+            socket.close();
+            throw new IOException("Cluster coordinator refused registration");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Security.AESDecrypt(sessionKey, WireCodec.readBytes(in)));
+        this.nodeID = buffer.getInt();
+        this.rootCode = WireCodec.getString(buffer);
+        this.epoch = buffer.getLong();
+        byte[] GK = new byte[buffer.remaining()];
+        buffer.get(GK);
+        this.groupKey = new SecretKeySpec(GK, "AES");
+    }
+
+    public int getNodeID() {
+        return nodeID;
+    }
+
+    public String getRootCode() {
+        return rootCode;
+    }
+
+    //epoch and GK at registration, before any epoch was received
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public SecretKey getGroupKey() {
+        return groupKey;
+    }
+
+    //must be set before the link is run -- epochs sent meanwhile just wait in the socket
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void requestJoinEpoch() throws IOException {
+        send(RequestCode.ROOT_KEY_JOIN, new byte[0]);
+    }
+
+    public void requestLeaveEpoch() throws IOException {
+        send(RequestCode.ROOT_KEY_LEAVE, new byte[0]);
+    }
+
+    public void relay(byte[] batch) throws IOException {
+        send(RequestCode.CLUSTER_RELAY, batch);
+    }
+
+    private void send(int code, byte[] payload) throws IOException {
+        byte[] encrypted = Security.AESEncrypt(sessionKey, payload);
+        synchronized (out) {
+            WireCodec.writeHeader(out, code);
+            WireCodec.writeBytes(out, encrypted);
+            out.flush();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            int code;
+            while ((code = WireCodec.readHeaderOrEnd(in)) != -1) {
+                ByteBuffer buffer = ByteBuffer.wrap(Security.AESDecrypt(sessionKey, WireCodec.readBytes(in)));
+                switch (code) {
+                    case RequestCode.ROOT_KEY_JOIN: {
+                        long next = buffer.getLong();
+                        listener.joinEpoch(next, buffer.getInt() == nodeID);
+                        break;
+                    }
+                    case RequestCode.ROOT_KEY_LEAVE: {
+                        long next = buffer.getLong();
+                        boolean ours = buffer.getInt() == nodeID;
+                        byte[] GK = new byte[buffer.remaining()];
+                        buffer.get(GK);
+                        listener.leaveEpoch(next, ours, new SecretKeySpec(GK, "AES"));
+                        break;
+                    }
+                    case RequestCode.CLUSTER_RELAY: {
+                        buffer.getInt(); //originating node
+                        byte[] batch = new byte[buffer.remaining()];
+                        buffer.get(batch);
+                        listener.relayed(batch);
+                        break;
+                    }
+                    default:
+                        break;
+                }
+            }
+            Logger.getLogger(ClusterLink.class.getName()).log(Level.SEVERE, "Cluster coordinator closed the connection");
+        } catch (IOException ex) {
+            Logger.getLogger(ClusterLink.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
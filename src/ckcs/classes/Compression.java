@@ -0,0 +1,84 @@
+package ckcs.classes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+//Deflate for message batches, done once by the controller before the GK encryption -- not per member
+//an optional preset dictionary (text that typical messages share, e.g. the JSON keys of a telemetry record)
+//lets even a single small message compress, members get it from the controller before any message that uses it
+//the zlib stream names its dictionary by Adler-32, so members can hold more than one
+public final class Compression {
+
+    private Compression() {
+    }
+
+    //null when compressing doesn't make input any smaller -- it is then sent as it is
+    public static byte[] compress(final byte[] input, final byte[] dictionary) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(input);
+            deflater.finish();
+            byte[] buffer = new byte[input.length];
+            int length = 0;
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (!deflater.finished()) { //no smaller than the input
+                return null;
+            }
+            byte[] compressed = new byte[length];
+            System.arraycopy(buffer, 0, compressed, 0, length);
+            return compressed;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    //dictionaries by dictionaryID, an unknown one or a stream past WireCodec.MAX_LENGTH is an IOException
+    public static byte[] decompress(final byte[] input, final Map<Integer, byte[]> dictionaries) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0) {
+                    if (inflater.needsDictionary()) {
+                        byte[] dictionary = dictionaries.get(inflater.getAdler());
+                        if (dictionary == null) {
+                            throw new IOException("Unknown compression dictionary: " + inflater.getAdler());
+                        }
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.needsInput()) {
+                        throw new IOException("Compressed payload is truncated");
+                    }
+                }
+                out.write(buffer, 0, length);
+                if (out.size() > WireCodec.MAX_LENGTH) {
+                    throw new IOException("Compressed payload expands past " + WireCodec.MAX_LENGTH + " bytes");
+                }
+            }
+            return out.toByteArray();
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    //the ID a zlib stream carries for the dictionary it was compressed with
+    public static int dictionaryID(final byte[] dictionary) {
+        Adler32 adler = new Adler32();
+        adler.update(dictionary);
+        return (int)adler.getValue();
+    }
+}
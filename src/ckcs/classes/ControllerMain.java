@@ -0,0 +1,271 @@
+package ckcs.classes;
+
+import ckcs.interfaces.MemberUI;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+//Runs the pieces of a controller cluster as separate processes, all on localhost for testing:
+//  coordinator <port>
+//  node <port> <coordinatorHost> <coordinatorPort>
+//  bench <maxNodes> <membersPerNode> <leavesPerNode> [basePort]
+//  primary <port> <replicationPort>
+//  standby <port> <primaryHost> <replicationPort> [primaryTimeoutMillis]
+//  failover <members> [basePort]
+//bench starts a coordinator and 1..maxNodes node processes, joins members to them round robin (in this process),
+//then has leavesPerNode members of EVERY node leave at once and reports the aggregate rekey throughput --
+//leaves done / time until the last remaining member had the final GK
+//failover starts a primary and a standby process, joins members to the primary, kills it and reports how long
+//until every member had the standby's new GK -- then checks the members can still send and leave
+public class ControllerMain {
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "";
+        switch (mode) {
+            case "coordinator":
+                new ClusterCoordinator(Integer.parseInt(args[1]));
+                break;
+            case "node":
+                new GroupController(Integer.parseInt(args[1]), null,
+                        InetAddress.getByName(args[2]), Integer.parseInt(args[3]));
+                break;
+            case "bench":
+                int basePort = args.length > 4 ? Integer.parseInt(args[4]) : 16000;
+                benchmark(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), basePort);
+                break;
+            case "primary":
+                new GroupController(Integer.parseInt(args[1])).startReplication(Integer.parseInt(args[2]));
+                break;
+            case "standby":
+                new GroupController(Integer.parseInt(args[1]), null,
+                        new InetSocketAddress(InetAddress.getByName(args[2]), Integer.parseInt(args[3])),
+                        args.length > 4 ? Long.parseLong(args[4]) : StandbyLink.DEFAULT_PRIMARY_TIMEOUT_MILLIS);
+                break;
+            case "failover":
+                failover(Integer.parseInt(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 18000);
+                break;
+            default:
+                System.out.println("usage: ControllerMain coordinator <port>");
+                System.out.println("       ControllerMain node <port> <coordinatorHost> <coordinatorPort>");
+                System.out.println("       ControllerMain bench <maxNodes> <membersPerNode> <leavesPerNode> [basePort]");
+                System.out.println("       ControllerMain primary <port> <replicationPort>");
+                System.out.println("       ControllerMain standby <port> <primaryHost> <replicationPort> [primaryTimeoutMillis]");
+                System.out.println("       ControllerMain failover <members> [basePort]");
+        }
+    }
+
+    private static void benchmark(int maxNodes, int membersPerNode, int leavesPerNode, int basePort) throws Exception {
+        for (int nodes = 1; nodes <= maxNodes; nodes++) {
+            //fresh ports every round, the last round's sockets may still be closing
+            int coordinatorPort = basePort + nodes * 1000;
+            int memberPort = coordinatorPort + 100;
+            double rate = benchmarkRound(nodes, membersPerNode, leavesPerNode, coordinatorPort, memberPort);
+            System.out.println(String.format("nodes=%d members=%d leaves=%d rekeysPerSecond=%.1f",
+                    nodes, nodes * membersPerNode, nodes * leavesPerNode, rate));
+        }
+        System.exit(0);
+    }
+
+    private static double benchmarkRound(int nodes, int membersPerNode, int leavesPerNode,
+            int coordinatorPort, int memberPort) throws Exception {
+        final InetAddress address = InetAddress.getLocalHost();
+        Map<GroupMember, KeyWatch> watches = new HashMap<>();
+        List<List<GroupMember>> members = new ArrayList<>();
+        for (int n = 0; n < nodes; n++) {
+            List<GroupMember> onNode = new ArrayList<>();
+            for (int i = 0; i < membersPerNode; i++) {
+                KeyWatch watch = new KeyWatch();
+                GroupMember member = new GroupMember(memberPort++, watch); //also makes sure the trusted "keys" file exists
+                watches.put(member, watch);
+                onNode.add(member);
+            }
+            members.add(onNode);
+        }
+        List<Process> processes = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(32);
+        try {
+            processes.add(spawn("coordinator", Integer.toString(coordinatorPort)));
+            waitForPort(coordinatorPort);
+            for (int n = 0; n < nodes; n++) {
+                processes.add(spawn("node", Integer.toString(coordinatorPort + 1 + n),
+                        "localhost", Integer.toString(coordinatorPort)));
+            }
+            for (int n = 0; n < nodes; n++) {
+                waitForPort(coordinatorPort + 1 + n);
+            }
+            List<Runnable> joins = new ArrayList<>();
+            for (int n = 0; n < nodes; n++) {
+                final int nodePort = coordinatorPort + 1 + n;
+                for (final GroupMember member : members.get(n)) {
+                    joins.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            member.requestJoin(address, nodePort);
+                        }
+                    });
+                }
+            }
+            runAll(pool, joins);
+            awaitAgreement(watches.values(), 0);
+
+            List<Runnable> leaves = new ArrayList<>();
+            for (List<GroupMember> onNode : members) {
+                for (int i = 0; i < leavesPerNode; i++) {
+                    final GroupMember member = onNode.remove(0);
+                    watches.remove(member);
+                    leaves.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            member.requestLeave();
+                        }
+                    });
+                }
+            }
+            long start = System.nanoTime();
+            runAll(pool, leaves);
+            long end = awaitAgreement(watches.values(), start);
+            return nodes * leavesPerNode / ((end - start) / 1e9);
+        } finally {
+            pool.shutdownNow();
+            for (Process process : processes) {
+                process.destroy();
+            }
+            for (Process process : processes) {
+                process.waitFor();
+            }
+        }
+    }
+
+    private static void failover(int count, int basePort) throws Exception {
+        final int primaryPort = basePort;
+        final int replicationPort = basePort + 1;
+        final int standbyPort = basePort + 2;
+        final InetAddress address = InetAddress.getLocalHost();
+        Map<GroupMember, KeyWatch> watches = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            KeyWatch watch = new KeyWatch();
+            watches.put(new GroupMember(basePort + 100 + i, watch), watch);
+        }
+        Process primary = spawn("primary", Integer.toString(primaryPort), Integer.toString(replicationPort));
+        Process standby = null;
+        ExecutorService pool = Executors.newFixedThreadPool(32);
+        try {
+            waitForPort(replicationPort);
+            standby = spawn("standby", Integer.toString(standbyPort), "localhost", Integer.toString(replicationPort));
+            Thread.sleep(1000); //the standby connects and takes its snapshot
+            List<Runnable> joins = new ArrayList<>();
+            for (final GroupMember member : watches.keySet()) {
+                joins.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        member.requestJoin(address, primaryPort);
+                    }
+                });
+            }
+            runAll(pool, joins);
+            awaitAgreement(watches.values(), 0);
+            
+            long start = System.nanoTime();
+            primary.destroy();
+            long end = awaitAgreement(watches.values(), start);
+            System.out.println(String.format("failover members=%d millis=%.1f", count, (end - start) / 1e6));
+            
+            List<GroupMember> members = new ArrayList<>(watches.keySet());
+            members.get(0).sendMessage("after failover");
+            GroupMember leaving = members.get(1);
+            watches.remove(leaving);
+            start = System.nanoTime();
+            leaving.requestLeave();
+            awaitAgreement(watches.values(), start);
+            System.out.println("leave through the standby rekeyed the remaining members");
+        } finally {
+            pool.shutdownNow();
+            primary.destroy();
+            if (standby != null) {
+                standby.destroy();
+                standby.waitFor();
+            }
+            primary.waitFor();
+        }
+        System.exit(0);
+    }
+
+    private static Process spawn(String... args) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-cp", System.getProperty("java.class.path"), ControllerMain.class.getName()));
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        for (int tries = 0; tries < 200; tries++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException ex) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Nothing listening on port " + port);
+    }
+
+    private static void runAll(ExecutorService pool, List<Runnable> tasks) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        for (Runnable task : tasks) {
+            futures.add(pool.submit(task));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    //waits until every watched member has the same GK, got after since, and it has been stable for a while
+    //returns the nanoTime the last of them got it
+    private static long awaitAgreement(Collection<KeyWatch> watches, long since) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(200);
+            byte[] groupKey = null;
+            boolean agreed = true;
+            long last = 0;
+            for (KeyWatch watch : watches) {
+                byte[] GK = watch.groupKey;
+                agreed &= GK != null && watch.changed > since && (groupKey == null || Arrays.equals(groupKey, GK));
+                groupKey = GK;
+                last = Math.max(last, watch.changed);
+            }
+            if (agreed && System.nanoTime() - last > TimeUnit.MILLISECONDS.toNanos(500)) {
+                return last;
+            }
+        }
+        throw new IllegalStateException("Members did not agree on a group key");
+    }
+
+    //last GK one member reported, and when it changed
+    private static class KeyWatch implements MemberUI {
+        volatile byte[] groupKey;
+        volatile long changed;
+
+        @Override
+        public void updateState(GroupMember.InterfaceData data) {
+            byte[] GK = data.getGK();
+            if (GK != null && GK.length > 0 && !Arrays.equals(GK, groupKey)) {
+                groupKey = GK.clone();
+                changed = System.nanoTime();
+            }
+        }
+    }
+}
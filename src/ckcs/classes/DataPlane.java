@@ -0,0 +1,145 @@
+package ckcs.classes;
+
+import ckcs.interfaces.RequestCode;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.SecretKey;
+
+//A member host's socket on the group's multicast address -- when the controller runs a data plane, members
+//encrypt their messages under the GK themselves and multicast them straight to the group, so the controller
+//only handles membership and keys and message throughput is no longer bounded by one box
+//every datagram goes to each of the host's members on this address, they decrypt with their own key ring
+//best effort, like any UDP: a datagram can be lost or reordered, and a message has to fit in one
+//datagram: key epoch + AES(GK, sender ID + sender's sequence number + message) + HMAC over that ciphertext
+//a datagram is only delivered once, see ReplayWindow -- one that is replayed, or arrives more than WINDOW
+//of its sender's later ones too late, is dropped
+//the sender ID is NOT authenticated: the MAC only shows some member holding the GK sent it, and any member
+//could put any ID there (or use up another member's sequence numbers)
+public class DataPlane implements Runnable {
+
+    //larger messages go through the controller
+    public static final int MAX_MESSAGE = 60 * 1024;
+    private static final int MAX_DATAGRAM = 65507;
+    //how far behind its sender's newest datagram one may arrive and still be delivered
+    public static final int WINDOW = 64;
+
+    final private InetSocketAddress group;
+    final private MulticastSocket socket;
+    final private Set<GroupMember> members;
+    private volatile boolean closed;
+
+    DataPlane(InetSocketAddress group) throws IOException {
+        this.group = group;
+        this.socket = new MulticastSocket(group.getPort());
+        socket.joinGroup(group.getAddress());
+        this.members = new CopyOnWriteArraySet<>();
+    }
+
+    public InetSocketAddress getGroup() {
+        return group;
+    }
+
+    void add(GroupMember member) {
+        members.add(member);
+    }
+
+    //true once no member is left on it
+    boolean remove(GroupMember member) {
+        members.remove(member);
+        return members.isEmpty();
+    }
+
+    void publish(byte[] datagram) throws IOException {
+        socket.send(new DatagramPacket(datagram, datagram.length, group));
+    }
+
+    void close() {
+        closed = true;
+        socket.close();
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        try {
+            while (!closed) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                byte[] datagram = Arrays.copyOf(packet.getData(), packet.getLength());
+                for (GroupMember member : members) {
+                    member.receive(RequestCode.GROUP_DATAGRAM, datagram);
+                }
+            }
+        } catch (IOException ex) {
+            if (!closed) {
+                Logger.getLogger(DataPlane.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    //seq -- the sender's own count of its datagrams, from 0, inside the ciphertext so it can't be changed
+    public static byte[] seal(long epoch, SecretKey groupKey, UUID sender, long seq, byte[] message) {
+        ByteBuffer buffer = ByteBuffer.allocate(16 + 8 + message.length);
+        WireCodec.putUUID(buffer, sender);
+        buffer.putLong(seq);
+        buffer.put(message);
+        byte[] encrypted = Security.AESEncrypt(groupKey, buffer.array());
+        byte[] mac = Security.HMAC(groupKey, encrypted);
+        return ByteBuffer.allocate(8 + encrypted.length + mac.length).putLong(epoch).put(encrypted).put(mac).array();
+    }
+
+    //the rest of a datagram after its key epoch -- null if it doesn't authenticate under groupKey
+    public static MessageRelay.Message open(SecretKey groupKey, ByteBuffer buffer) {
+        if (buffer.remaining() < StreamChunk.MAC_LENGTH) {
+            return null;
+        }
+        byte[] encrypted = new byte[buffer.remaining() - StreamChunk.MAC_LENGTH];
+        byte[] mac = new byte[StreamChunk.MAC_LENGTH];
+        buffer.get(encrypted);
+        buffer.get(mac);
+        if (!Security.verifyHMAC(groupKey, encrypted, mac)) {
+            return null;
+        }
+        byte[] decrypted = Security.AESDecrypt(groupKey, encrypted);
+        if (decrypted == null || decrypted.length < 16 + 8) {
+            return null;
+        }
+        ByteBuffer plain = ByteBuffer.wrap(decrypted);
+        UUID sender = WireCodec.getUUID(plain);
+        long seq = plain.getLong();
+        byte[] message = new byte[plain.remaining()];
+        plain.get(message);
+        return new MessageRelay.Message(sender, seq, message);
+    }
+
+    //the sequence numbers seen from one sender, as in IPsec: the newest, and which of the WINDOW before it
+    //anything older, or already seen, is not delivered -- only for datagrams that authenticated
+    static class ReplayWindow {
+        private long newest = -1;
+        private long seen; //bit i is newest - i
+
+        boolean accept(long seq) {
+            if (seq > newest) {
+                long shift = seq - newest;
+                seen = shift >= WINDOW ? 1 : (seen << shift) | 1;
+                newest = seq;
+                return true;
+            }
+            long age = newest - seq;
+            if (seq < 0 || age >= WINDOW || (seen & (1L << age)) != 0) {
+                return false;
+            }
+            seen |= 1L << age;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package ckcs.classes;
+
+import ckcs.interfaces.Flow;
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//A Flow.Publisher with a BOUNDED buffer per subscriber -- items are handed over only as the subscriber
+//requests them, on a delivery thread, one signal at a time, never on the publishing thread
+//unlike StateBus nothing is coalesced: every item published reaches every subscriber, or the subscriber's
+//overflow policy decides what happens once it is capacity items behind
+public class EventPublisher<T> implements Flow.Publisher<T> {
+
+    public enum Overflow {
+        BLOCK,  //publish waits for room -- the member's frames (key updates too) wait with it, and so
+                //the controller's queue for the member fills up: backpressure all the way back
+                //it parks the PUBLISHING thread, for a GroupMember a RECEIVE_POOL thread shared by every
+                //member in the process -- one slow subscriber stalls them all, use it with one member per host
+        DROP,   //the new item is dropped for that subscriber, see getDropped -- the default
+        CANCEL  //the subscriber is cancelled with an error, it is too slow to keep up
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    //shared by every publisher, a thread per subscription that is being delivered to right now
+    private static final ExecutorService DELIVERY = Executors.newCachedThreadPool(new ThreadFactory() {
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "event-publisher-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    final private CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    final private AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        subscribe(subscriber, DEFAULT_CAPACITY, Overflow.DROP);
+    }
+
+    public void subscribe(Flow.Subscriber<? super T> subscriber, int capacity, Overflow overflow) {
+        if (subscriber == null)
+            throw new NullPointerException("subscriber");
+        Subscription subscription = new Subscription(subscriber, capacity, overflow);
+        subscriptions.add(subscription);
+        synchronized (subscription) { //a publish may already be scheduling it
+            if (closed) { //subscribed after the end, it only gets onSubscribe and onComplete
+                subscription.complete();
+            }
+            subscription.schedule();
+        }
+    }
+
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    //items dropped for DROP subscribers that were full
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public void publish(T item) {
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(item);
+        }
+    }
+
+    //no more items -- each subscriber gets onComplete once it has taken what is buffered for it
+    public void close() {
+        closed = true;
+        for (Subscription subscription : subscriptions) {
+            subscription.complete();
+        }
+    }
+
+    private class Subscription implements Flow.Subscription, Runnable {
+        final private Flow.Subscriber<? super T> subscriber;
+        final private int capacity;
+        final private Overflow overflow;
+        //everything below is guarded by this
+        final private ArrayDeque<T> buffer = new ArrayDeque<>();
+        private long demand;
+        private boolean subscribed; //onSubscribe has been signalled
+        private boolean completed;  //onComplete is due once the buffer is empty
+        private Throwable error;    //onError is due, ahead of anything buffered
+        private boolean done;       //cancelled, or a terminal signal went out
+        private boolean scheduled;  //a delivery task is queued or running
+
+        private Subscription(Flow.Subscriber<? super T> subscriber, int capacity, Overflow overflow) {
+            this.subscriber = subscriber;
+            this.capacity = capacity;
+            this.overflow = overflow;
+        }
+
+        private synchronized void offer(T item) {
+            while (!done && error == null && buffer.size() >= capacity) {
+                switch (overflow) {
+                    case BLOCK:
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            dropped.incrementAndGet();
+                            return;
+                        }
+                        break;
+                    case DROP:
+                        dropped.incrementAndGet();
+                        return;
+                    case CANCEL:
+                        fail(new IllegalStateException("Subscriber fell " + capacity + " items behind"));
+                        return;
+                }
+            }
+            if (done || error != null) {
+                return;
+            }
+            buffer.add(item);
+            schedule();
+        }
+
+        private synchronized void complete() {
+            completed = true;
+            schedule();
+        }
+
+        private synchronized void fail(Throwable throwable) {
+            if (error == null && !done) {
+                error = throwable;
+                buffer.clear();
+                notifyAll();
+                schedule();
+            }
+        }
+
+        @Override
+        public synchronized void request(long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("Non-positive request: " + n));
+                return;
+            }
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            schedule();
+        }
+
+        @Override
+        public synchronized void cancel() {
+            done = true;
+            buffer.clear();
+            notifyAll();
+            subscriptions.remove(this);
+        }
+
+        //under the lock
+        private void schedule() {
+            if (!scheduled) {
+                scheduled = true;
+                DELIVERY.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                T item = null;
+                Throwable failure = null;
+                boolean first = false;
+                boolean last = false;
+                synchronized (this) {
+                    if (!subscribed) {
+                        subscribed = first = true;
+                    } else if (done) {
+                        scheduled = false;
+                        return;
+                    } else if (error != null) {
+                        failure = error;
+                        done = true;
+                    } else if (demand > 0 && !buffer.isEmpty()) {
+                        item = buffer.poll();
+                        demand--;
+                        notifyAll(); //room for a blocked publish
+                    } else if (completed && buffer.isEmpty()) {
+                        last = done = true;
+                    } else {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                if (failure != null || last) {
+                    subscriptions.remove(this);
+                }
+                try {
+                    if (first) {
+                        subscriber.onSubscribe(this);
+                    } else if (failure != null) {
+                        subscriber.onError(failure);
+                    } else if (last) {
+                        subscriber.onComplete();
+                    } else {
+                        subscriber.onNext(item);
+                    }
+                } catch (RuntimeException ex) { //a subscriber that throws is cancelled
+                    Logger.getLogger(EventPublisher.class.getName()).log(Level.SEVERE, null, ex);
+                    cancel();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package ckcs.classes;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//runs the per-member sends of a fan-out on whatever executor the GroupController was given
+//concurrency is bounded by maxConcurrentSends, NOT by the executor's pool size -- so the executor can be
+//thread-per-task (e.g. a virtual thread per task executor) and thousands of blocking sends overlap
+//without thousands of them being in flight at once
+//submit() never blocks: sends wait in a ready queue and a limited number of runners work through it,
+//so whoever produces the sends (the controller, holding its lock) returns at once
+public class FanOut {
+
+    final private ExecutorService executor;
+    final private ConcurrentLinkedQueue<Runnable> ready;
+    final private AtomicInteger running;
+    final private int maxConcurrentSends;
+
+    public FanOut(ExecutorService executor, int maxConcurrentSends) {
+        if (maxConcurrentSends < 1)
+            throw new IllegalArgumentException("maxConcurrentSends must be at least 1");
+        this.executor = executor;
+        this.ready = new ConcurrentLinkedQueue<>();
+        this.running = new AtomicInteger();
+        this.maxConcurrentSends = maxConcurrentSends;
+    }
+
+    public void submit(Runnable send) {
+        ready.add(send);
+        startRunner();
+    }
+
+    //request handlers are not bounded here, the listener decides how many connections it accepts
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    //one extra runner per queued send, up to the limit
+    private void startRunner() {
+        while (true) {
+            int current = running.get();
+            if (current >= maxConcurrentSends) {
+                return;
+            }
+            if (running.compareAndSet(current, current + 1)) {
+                executor.execute(new Runner());
+                return;
+            }
+        }
+    }
+
+    private class Runner implements Runnable {
+        @Override
+        public void run() {
+            try {
+                Runnable send;
+                while ((send = ready.poll()) != null) {
+                    send.run();
+                }
+            } finally {
+                running.decrementAndGet();
+                //a send may have been queued between our last poll and the decrement
+                if (!ready.isEmpty()) {
+                    startRunner();
+                }
+            }
+        }
+    }
+}
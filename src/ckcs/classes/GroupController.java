@@ -1,33 +1,52 @@
 package ckcs.classes;
 
+import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SignedObject;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.SecretKey;
+import ckcs.interfaces.ControllerMetricsMBean;
 import ckcs.interfaces.RequestCode;
+import ckcs.interfaces.Transport;
 import ckcs.interfaces.ServerUI;
 import javax.xml.bind.DatatypeConverter;
 
@@ -36,26 +55,187 @@ public class GroupController {
     
     //GK is stored as root of tree, gets GK by calling tree.getRootKey();
     //updates GK by calling tree.setRootKey(SecretKey key);
-    final private LogicalTree tree;
+    //striped, see StripedTree -- the stripes are edited in parallel, always under the controller lock
+    final private StripedTree tree;
     final private Map<UUID, Member> groupMembers;
     final private UUID serverID;
-    final private ExecutorService executor;
-    final private SignedObject signedKey;
+    final private FanOut fanOut;
+    final private Security.SignedKey signedKey;
     final private PrivateKey privKey;
     final private InterfaceData uiData;
     
-    private ServerUI ui;
+    final private int queueDepth;
+    final private Overflow overflow;
+    final private MessageRelay relay;
+    final private RequestScheduler requests; //lanes for the member requests, after the RequestHandler admits them
+    private double memberRate; //messages per second per member, 0 for no limit -- guarded by the lock
+    private int memberBurst;
+    final private ExecutorService cryptoPool; //handshake crypto, sized to the cores
+    final private BlockingQueue<PendingJoin> pendingJoins; //drained by the JoinInserter
+    final private Queue<PendingLeave> pendingLeaves; //drained by whichever leave gets the lock first
+    final private ScheduledExecutorService scheduler; //join notices, these take the controller lock
+    //send deadlines and sender retries ONLY -- nothing on it may take the controller lock, a sender stuck in a
+    //write must still be cut off while a thread holding the lock is blocked on that member's full queue
+    final private ScheduledExecutorService deadlines;
+    final private ClusterLink cluster; //null when this controller runs the whole group by itself
+    final private StandbyLink standby; //null unless this controller started as a standby
+    private volatile Replicator replicator; //the attached standby, if any
+    private long replicaSeq; //last sequence number handed to the replicator, guarded by the lock
+    private int port;
+    private volatile boolean closed; //shutdown() was called
+    final private List<Closeable> listeners; //the member and replication listeners, closed on shutdown
+    final private Queue<List<PendingJoin>> joinsAwaitingEpoch; //in the tree, waiting for their join epoch
+    
+    private long keyEpoch; //bumped on every GK change, members track it to know how far to hash forward
+    private volatile EpochKey currentKey; //GK + its epoch, readable without the lock
+    private volatile int lastFanOutSkipped; //members whose circuit breaker was open during the last fan-out
+    final private AtomicLong totalSkipped;
+    //---- metrics, exported over JMX as ckcs:type=GroupController,name=<serverID> ----
+    final private AtomicLong bytesSent;
+    final private AtomicLong connectionsOpened;
+    final private AtomicLong failedSends;
+    final private AtomicLong rejected; //requests shed, or over their member's rate limit
+    final private LatencyHistogram joinHandshake;  //first byte read to last byte written of a join
+    final private LatencyHistogram treeUpdate;     //tree adds of a join batch, tree remove of a leave
+    final private LatencyHistogram rekey;          //new GK + the per-member encryptions of a rekey
+    final private LatencyHistogram fanOutLatency;  //first frame queued to the last member's send completing
+    final private LatencyHistogram messageRelay;   //message read off its sender's connection to queued for the group
+    private boolean joinNoticeScheduled;
+    
+    final private StateBus<InterfaceData> events; //the UIs, and anything else watching the controller's state
+    private Transport transport; //how members are reached and listened for, TCP unless a constructor says otherwise
+    //one connection per member host (address + port), shared by every member listening there, guarded by itself
+    final private Map<InetSocketAddress, Endpoint> endpoints;
+    private volatile InetSocketAddress dataPlane; //members multicast their messages here, null if relayed through us
+    private volatile boolean compression; //deflate message batches for the members that can take them
+    private volatile byte[] dictionary; //preset for the deflater, null for none
+    
+    //max number of member sends in flight at once during a fan-out
+    public static final int DEFAULT_MAX_CONCURRENT_SENDS = 64;
+    //max number of messages waiting to be sent to any one member -- key and control frames don't count
+    public static final int DEFAULT_QUEUE_DEPTH = 256;
+    //key frames a member can be behind by before it is removed, whatever the overflow policy -- join notices
+    //coalesce, so it takes a member that has been unreachable through this many leaves
+    public static final int MAX_KEY_BACKLOG = 4096;
+    //group messages arriving within this window are relayed together as one batch
+    public static final long RELAY_WINDOW_MILLIS = 2;
+    //most joins the JoinInserter puts into the tree in one go
+    public static final int MAX_JOIN_BATCH = 512;
+    //join notifications are held this long so several joins go out as ONE KEY_UPDATE_JOIN per member
+    public static final long JOIN_NOTICE_WINDOW_MILLIS = 20;
+    //per-send deadlines -- an unreachable member must not hold a sender for the OS default timeout
+    public static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    public static final long SEND_DEADLINE_MILLIS = 5000;
+    //most frames one send writes to a member, each send has its own deadline
+    public static final int SEND_BATCH = 64;
+    //how long a join/leave reply waits for the standby to confirm it has the change, before going out anyway
+    public static final long REPLICA_ACK_TIMEOUT_MILLIS = 500;
+    //a standby's first epoch is this far past the last one it was sent -- members may hold later epochs the
+    //primary sent out without the standby's ack, the standby's GK must never share an epoch with one of them
+    public static final long FAILOVER_EPOCH_GAP = 1 << 16;
+    //how long a join handler waits for the JoinInserter to finish its join, before backing out
+    public static final long JOIN_TIMEOUT_MILLIS = 10000;
+    
+    //what to do when a member's outbound queue has no room for another message
+    //key updates, failover notices, dictionaries and force removes take no room, they are never dropped
+    public enum Overflow {
+        DROP,   //drop the message for that member, it misses it but its keys stay in sync
+        BLOCK,  //wait for room, holding up the whole group behind that member
+        EVICT   //force remove the member, it is too slow to keep up with the group -- opt in only, a member whose
+                //breaker is merely open is evicted too, and every eviction is a rekey for the rest of the group
+    }
         
     public GroupController() {
-        KeyPair keyPair = Security.generateKeyPair();
+        this(Executors.newCachedThreadPool(), DEFAULT_MAX_CONCURRENT_SENDS, DEFAULT_QUEUE_DEPTH, Overflow.DROP);
+    }
+    
+    //workers runs both the fan-out sends and the per-connection RequestHandlers
+    //it can be a thread-per-task executor (virtual threads on JDK 21+, Executors.newVirtualThreadPerTaskExecutor())
+    //since maxConcurrentSends bounds the fan-out, not the number of worker threads
+    public GroupController(ExecutorService workers, int maxConcurrentSends, int queueDepth, Overflow overflow) {
+        this(workers, maxConcurrentSends, queueDepth, overflow, Security.generateKeyPair(), null, null);
+    }
+    
+    private GroupController(KeyPair keyPair, InetAddress coordinatorAddress, int coordinatorPort) throws IOException {
+        this(Executors.newCachedThreadPool(), DEFAULT_MAX_CONCURRENT_SENDS, DEFAULT_QUEUE_DEPTH, Overflow.DROP, keyPair,
+                new ClusterLink(coordinatorAddress, coordinatorPort, 
+                        Security.obtainTrustedSigned(keyPair.getPublic()), keyPair.getPrivate()), null);
+    }
+    
+    private GroupController(KeyPair keyPair, InetSocketAddress primary) throws IOException {
+        this(Executors.newCachedThreadPool(), DEFAULT_MAX_CONCURRENT_SENDS, DEFAULT_QUEUE_DEPTH, Overflow.DROP, keyPair,
+                null, new StandbyLink(primary, Security.obtainTrustedSigned(keyPair.getPublic()), keyPair.getPrivate()));
+    }
+    
+    private GroupController(ExecutorService workers, int maxConcurrentSends, int queueDepth, Overflow overflow,
+            KeyPair keyPair, ClusterLink cluster, StandbyLink standby) {
         this.uiData = new InterfaceData();
+        this.events = new StateBus<>();
+        this.transport = new TcpTransport();
         this.privKey = keyPair.getPrivate();
         this.signedKey = Security.obtainTrustedSigned(keyPair.getPublic());
-        this.tree = new LogicalTree(3);
-        this.groupMembers = new HashMap<>();
-        this.executor = new ThreadPoolExecutor(5, 5, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
-        this.serverID = UUID.randomUUID();
-        tree.setGroupKey(Security.generateRandomKey());
+        this.cluster = cluster;
+        this.standby = standby;
+        if (cluster != null) {
+            this.tree = new StripedTree(cluster.getRootCode(), StripedTree.DEFAULT_STRIPES);
+        } else if (standby != null) {
+            this.tree = standby.getTree();
+        } else {
+            this.tree = new StripedTree(3, StripedTree.DEFAULT_STRIPES);
+        }
+        this.groupMembers = new ConcurrentHashMap<>();
+        this.endpoints = new HashMap<>();
+        this.fanOut = new FanOut(workers, maxConcurrentSends);
+        this.requests = new RequestScheduler(workers);
+        this.queueDepth = queueDepth;
+        this.overflow = overflow;
+        this.relay = new MessageRelay(new MessageRelay.Sink() {
+            @Override
+            public void deliver(List<MessageRelay.Message> batch) {
+                sendMessages(batch);
+            }
+        }, RELAY_WINDOW_MILLIS);
+        this.cryptoPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this.pendingJoins = new LinkedBlockingQueue<>();
+        this.pendingLeaves = new ConcurrentLinkedQueue<>();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.deadlines = Executors.newSingleThreadScheduledExecutor();
+        this.totalSkipped = new AtomicLong();
+        this.bytesSent = new AtomicLong();
+        this.connectionsOpened = new AtomicLong();
+        this.failedSends = new AtomicLong();
+        this.rejected = new AtomicLong();
+        this.joinHandshake = new LatencyHistogram();
+        this.treeUpdate = new LatencyHistogram();
+        this.rekey = new LatencyHistogram();
+        this.fanOutLatency = new LatencyHistogram();
+        this.messageRelay = new LatencyHistogram();
+        this.joinsAwaitingEpoch = new LinkedList<>();
+        this.listeners = new CopyOnWriteArrayList<>();
+        //a standby IS the primary to the members once it takes over -- same serverID, same tree and keys
+        this.serverID = standby == null ? UUID.randomUUID() : standby.getServerID();
+        if (cluster != null) {
+            tree.setGroupKey(cluster.getGroupKey());
+            keyEpoch = cluster.getEpoch();
+        } else if (standby != null) {
+            keyEpoch = standby.getEpoch();
+            for (StandbyLink.Joined joined : standby.getMembers()) {
+                Member member = new Member(joined.getMemberID(), joined.getPort(), joined.getAddress());
+                member.epoch = keyEpoch;
+                groupMembers.put(joined.getMemberID(), member);
+            }
+        } else {
+            tree.setGroupKey(Security.generateRandomKey());
+        }
+        this.currentKey = new EpochKey(keyEpoch, tree.getGroupKey());
+        Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+        histograms.put("JoinHandshake", joinHandshake);
+        histograms.put("TreeUpdate", treeUpdate);
+        histograms.put("Rekey", rekey);
+        histograms.put("FanOut", fanOutLatency);
+        histograms.put("MessageRelay", messageRelay);
+        MetricsExporter.register("GroupController", serverID.toString(), new Metrics(), 
+                ControllerMetricsMBean.class, histograms);
     }
     
     public GroupController(int port) {
@@ -65,180 +245,942 @@ public class GroupController {
     
     public GroupController(int port, ServerUI ui) {
         this();
-        this.ui = ui;
+        subscribe(ui);
+        startListening(port);
+    }
+    
+    public GroupController(int port, ServerUI ui, ExecutorService workers, int maxConcurrentSends,
+            int queueDepth, Overflow overflow) {
+        this(workers, maxConcurrentSends, queueDepth, overflow);
+        subscribe(ui);
+        startListening(port);
+    }
+    
+    //members on another transport -- e.g. a LoopbackTransport shared with in-process members
+    public GroupController(int port, ServerUI ui, Transport transport) {
+        this();
+        subscribe(ui);
+        this.transport = transport;
         startListening(port);
     }
     
+    //CLUSTER node -- owns one top-level subtree of the group, GK changes are ordered by the ClusterCoordinator
+    //blocks until the coordinator has registered this node
+    public GroupController(int port, ServerUI ui, InetAddress coordinatorAddress, int coordinatorPort) throws IOException {
+        this(Security.generateKeyPair(), coordinatorAddress, coordinatorPort);
+        subscribe(ui);
+        startListening(port);
+    }
+    
+    //STANDBY for the primary controller whose replication port is at primary -- keeps a copy of its tree
+    //and group key, and only starts serving members on port once the primary is gone
+    public GroupController(int port, ServerUI ui, InetSocketAddress primary) throws IOException {
+        this(port, ui, primary, StandbyLink.DEFAULT_PRIMARY_TIMEOUT_MILLIS);
+    }
+    
+    //gone is primaryTimeoutMillis without a heartbeat -- too short and a slow primary has a twin
+    public GroupController(int port, ServerUI ui, InetSocketAddress primary, long primaryTimeoutMillis) throws IOException {
+        this(Security.generateKeyPair(), primary);
+        subscribe(ui);
+        this.port = port;
+        standby.setListener(new StandbyListener());
+        standby.setPrimaryTimeout(primaryTimeoutMillis);
+        fanOut.execute(standby);
+        uiData.state = "Standby controller started. Replicating the primary controller.";
+        uiData.groupKey = tree.getGroupKey().getEncoded();
+        uiData.memCount = groupMembers.size();
+        uiData.update();
+    }
+    
+    //lets ONE standby controller attach on replicationPort, a newer standby replaces the last one
+    public void startReplication(int replicationPort) {
+        if (cluster != null) {
+            throw new IllegalStateException("A cluster node has no standby, the coordinator holds the group key");
+        }
+        fanOut.execute(new ReplicationServer(replicationPort));
+    }
+    
+    //stops listening and sending, and lets go of the controller's threads and its JMX registration
+    //the members are not told, nor are they removed -- to them it is a controller that went away
+    //workers was handed in by the caller, it is theirs to shut down
+    public void shutdown() {
+        closed = true;
+        for (Closeable listener : listeners) {
+            closeQuietly(listener);
+        }
+        relay.close();
+        Replicator current = replicator;
+        if (current != null) {
+            current.close();
+        }
+        scheduler.shutdownNow();
+        deadlines.shutdownNow();
+        cryptoPool.shutdownNow();
+        synchronized (endpoints) {
+            for (Endpoint endpoint : endpoints.values()) {
+                synchronized (endpoint) {
+                    if (endpoint.connection != null) {
+                        closeQuietly(endpoint.connection);
+                        endpoint.connection = null;
+                    }
+                }
+            }
+        }
+        MetricsExporter.unregister("GroupController", serverID.toString());
+    }
+    
+    //ui sees the latest state, soon after each change and never on the thread making it
+    //a ui that is still busy with the last state skips the ones in between
+    public void subscribe(ServerUI ui) {
+        subscribe(ui, false);
+    }
+    
+    //everyUpdate -- every state in order, however far behind the ui falls (e.g. a log)
+    public void subscribe(ServerUI ui, boolean everyUpdate) {
+        if (ui != null) {
+            events.subscribe(new UISubscriber(ui), everyUpdate);
+        }
+    }
+    
+    public void unsubscribe(ServerUI ui) {
+        events.unsubscribe(new UISubscriber(ui));
+    }
+    
+    //members joining from now on multicast their group messages to group themselves, encrypted under the GK --
+    //we only handle membership and keys (SEND_MESSAGE is still relayed, for messages too big for a datagram
+    //and for members that joined before)
+    public void setDataPlane(InetAddress group, int port) {
+        this.dataPlane = new InetSocketAddress(group, port);
+    }
+    
+    //message batches are deflated ONCE before the GK encryption, for the members that said they can inflate them
+    //(the others get the same batch uncompressed) -- a batch that doesn't get smaller is sent as it is
+    //preset, if not null, presets the deflater so small messages compress too, the members are sent it first
+    //fan-out reads dictionary without the lock, so it is only published once every member has its frame queued --
+    //no batch deflated with it can get into a member's queue ahead of the dictionary
+    public synchronized void setCompression(boolean enabled, byte[] preset) {
+        if (!enabled) {
+            this.compression = false;
+            this.dictionary = null;
+            return;
+        }
+        if (preset != null) {
+            for (Member member : groupMembers.values()) {
+                if (member.compression) {
+                    enqueue(member, dictionaryFrame(tree.getMemberKey(member.id), preset));
+                }
+            }
+        }
+        this.dictionary = preset;
+        this.compression = true;
+    }
+    
+    //each member may send perSecond messages (and streams) on average, up to burst at once --
+    //past that they are rejected with REJECT_RATE_LIMITED, perSecond 0 lifts the limit
+    public synchronized void setMemberRateLimit(double perSecond, int burst) {
+        this.memberRate = perSecond;
+        this.memberBurst = burst;
+        for (Member member : groupMembers.values()) {
+            member.bucket = newBucket();
+        }
+    }
+    
+    private TokenBucket newBucket() {
+        return memberRate > 0 ? new TokenBucket(memberRate, memberBurst) : null;
+    }
+    
+    private static Frame dictionaryFrame(SecretKey memberKey, byte[] preset) {
+        return new Frame(RequestCode.COMPRESSION_DICTIONARY, Security.AESEncrypt(memberKey, preset));
+    }
+    
+    public int getMembersSkippedLastFanOut() {
+        return lastFanOutSkipped;
+    }
+    
+    public long getTotalMembersSkipped() {
+        return totalSkipped.get();
+    }
+    
     //To give ability to FORCE remove members -- Tells the member that they have been removed
     //Then proceeds with the regular remove procedure
     //UUID is difficult to maintain and input --- NEED A SHORTER ID/KEY
     public void forceLeave(UUID memId) {
-        Member mem = groupMembers.get(memId);
-        try (Socket socket = new Socket(mem.address, mem.port);
-                DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
-            out.writeInt(RequestCode.FORCE_REMOVE);
-            removeMember(memId);
-        } catch (IOException ex) {
-            Logger.getLogger(GroupController.class.getName()).log(Level.SEVERE, null, ex);
+        Member mem;
+        synchronized (this) {
+            mem = groupMembers.get(memId);
         }
+        if (mem == null) {
+            return;
+        }
+        mem.clear(); //nothing else matters to a member being removed
+        enqueue(mem, new Frame(RequestCode.FORCE_REMOVE, null));
+        removeMember(memId);
     }
     
     //start a serverSocket listening for connections -- this is BLOCKING, 
     //every accepted connection spawns a new thread to handle the accepted 
     //connections --- either JOIN/LEAVE/MESSAGE request
     private void startListening(final int port) {    
-        ExecutorService ex = new ThreadPoolExecutor(2, 4, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(6));
-        ex.execute(new Server(ex, port));
+        this.port = port;
+        fanOut.execute(new Server(port));
+        fanOut.execute(relay);
+        fanOut.execute(new JoinInserter());
+        if (cluster != null) {
+            cluster.setListener(new ClusterListener());
+            fanOut.execute(cluster);
+        }
         uiData.state = "Group Controller started. Now listening for incoming connections.";
         uiData.groupKey = tree.getGroupKey().getEncoded();
-        uiData.memCount = 0;
+        uiData.memCount = groupMembers.size();
         uiData.update();
     }
     
     //multicast to group members that key must be updated via hash for JOIN
-    private synchronized void addMember(UUID memberID, int port, InetAddress address, SecretKey key) {
+    //a whole batch of joins costs ONE hash of the GK -- the joining members all receive the hashed GK,
+    //so none of them can recover the GK from before they joined
+    //existing members are not told right away, see scheduleJoinNotice
+    //the batch is finished when its join epoch is applied -- right away, or in CLUSTER mode once the coordinator
+    //sends it back (other nodes' epochs may come first, the members get whatever GK their epoch has)
+    private synchronized void addMembers(List<PendingJoin> batch) {
+        for (Iterator<PendingJoin> joins = batch.iterator(); joins.hasNext();) {
+            if (joins.next().abandoned) { //its handler timed out before the batch got the lock
+                joins.remove();
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        Map<UUID, SecretKey> added = new LinkedHashMap<>();
+        for (PendingJoin join : batch) {
+            added.put(join.memberID, join.key);
+        }
+        tree.addAll(added, cryptoPool);
+        treeUpdate.recordSince(start);
+        joinsAwaitingEpoch.add(batch);
+        if (cluster == null) {
+            applyJoinEpoch(keyEpoch + 1, true);
+            return;
+        }
         try {
-            tree.add(memberID, key);
-            List<MultiUnicast> tasks = new ArrayList<>();
-            for (Member mem : groupMembers.values()) {
-                tasks.add(new MultiUnicast(mem, RequestCode.KEY_UPDATE_JOIN));
-            }
-            executor.invokeAll(tasks);
-            updateKeyOnJoin();
-            groupMembers.put(memberID, new Member(port, address));
-            uiData.groupKey = tree.getGroupKey().getEncoded();
-            uiData.state = "A new member has been added! member ID is: " + memberID;
-            uiData.memCount++;
-            uiData.update();
-        } catch (InterruptedException ex) {
+            cluster.requestJoinEpoch();
+        } catch (IOException ex) {
             Logger.getLogger(GroupController.class.getName()).log(Level.SEVERE, null, ex);
+            joinsAwaitingEpoch.remove(batch);
+            for (PendingJoin join : batch) {
+                try {
+                    tree.remove(join.memberID);
+                } catch (Exceptions.NoMemberException ignored) {
+                }
+            }
+            failJoins(batch);
         }
     }
     
-    private synchronized void removeMember(UUID memberID) {
-        try {
-            tree.remove(memberID); //removes member... Updates TREE middleKeys to most recent value with current GK
-            groupMembers.remove(memberID); 
-            List<MultiUnicast> tasks = new ArrayList<>();
-            updateKeyOnLeave(); //generates a new random GK
-            for (UUID Id : groupMembers.keySet()) {
-                Member member = groupMembers.get(Id);
-                byte[] encryptedGK = tree.encryptGKForMember(Id);
-                tasks.add(new MultiUnicast(encryptedGK, member, RequestCode.KEY_UPDATE_LEAVE));
-            }
-            executor.invokeAll(tasks);
+    //new GK is hash of old GK -- ours is true if the epoch is for this controller's oldest waiting join batch
+    private synchronized void applyJoinEpoch(long epoch, boolean ours) {
+        long start = System.nanoTime();
+        setGroupKey(epoch, Security.updateKey(tree.getGroupKey()));
+        rekey.recordSince(start);
+        scheduleJoinNotice();
+        if (ours) {
+            List<PendingJoin> batch = joinsAwaitingEpoch.poll();
+            replicateJoins(batch);
+            completeJoins(batch);
+        } else {
             uiData.groupKey = tree.getGroupKey().getEncoded();
-            uiData.state = "A member has been removed. member ID is: " + memberID;
-            uiData.memCount--;
+            uiData.state = "Members have joined the group on another controller node.";
             uiData.update();
-        } catch (Exceptions.NoMemberException | InterruptedException ex) {
-            Logger.getLogger(GroupController.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
+    
+    private void completeJoins(List<PendingJoin> batch) {
+        for (PendingJoin join : batch) {
+            Member member = new Member(join.memberID, join.port, join.address);
+            member.epoch = keyEpoch;
+            member.compression = join.compression;
+            if (member.compression && dictionary != null) { //queued before any message can be
+                enqueue(member, dictionaryFrame(join.key, dictionary));
+            }
+            groupMembers.put(join.memberID, member);
+            join.epoch = keyEpoch;
+            //read after the whole batch is in, later adds can move earlier members down the tree
+            join.parentCode = tree.announceParentCode(join.memberID);
+            join.groupKey = tree.getGroupKey();
+            join.stripeSecret = tree.getStripeSecret(join.memberID);
+        }
+        uiData.groupKey = tree.getGroupKey().getEncoded();
+        if (batch.size() == 1) {
+            uiData.state = "A new member has been added! member ID is: " + batch.get(0).memberID;
+        } else {
+            uiData.state = batch.size() + " new members have been added!";
+        }
+        uiData.memCount += batch.size();
+        uiData.update();
+        for (PendingJoin join : batch) {
+            join.done.countDown();
+            if (join.abandoned) { //its handler timed out while the batch waited for an epoch, nobody has its GK
+                removeMember(join.memberID);
+            }
+        }
+    }
+    
+    //the handler gave up on join -- false if it finished just before, true if it is backed out:
+    //still queued it is taken off the queue, already in the tree it is removed once its batch completes
+    private synchronized boolean abandonJoin(PendingJoin join) {
+        if (join.done.getCount() == 0) {
+            return false;
+        }
+        join.abandoned = true;
+        pendingJoins.remove(join);
+        return true;
+    }
+    
+    //groupKey stays null, the handlers give up on these joins
+    private static void failJoins(List<PendingJoin> batch) {
+        for (PendingJoin join : batch) {
+            join.done.countDown();
+        }
+    }
+    
+    //joins that happen within JOIN_NOTICE_WINDOW_MILLIS of each other go out as one notification
+    private void scheduleJoinNotice() {
+        if (joinNoticeScheduled) {
+            return;
+        }
+        joinNoticeScheduled = true;
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flushJoinNotices();
+            }
+        }, JOIN_NOTICE_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    //tells every member behind on joins which epoch to hash forward to
+    //MUST run before queueing anything that depends on the current GK (leave rekeys, messages),
+    //so that the only GK changes a member can be behind on are joins -- which it can hash forward itself
+    private synchronized void flushJoinNotices() {
+        joinNoticeScheduled = false;
+        Frame notice = null;
+        int skipped = 0;
+        for (Member member : groupMembers.values()) {
+            if (member.epoch < keyEpoch) {
+                if (notice == null) {
+                    notice = new Frame(RequestCode.KEY_UPDATE_JOIN, ByteBuffer.allocate(8).putLong(keyEpoch).array(),
+                            new FanOutTimer());
+                }
+                if (enqueue(member, notice)) {
+                    skipped++;
+                }
+                member.epoch = keyEpoch;
+            }
+        }
+        if (notice != null) {
+            recordFanOut(skipped, notice.timer);
+        }
+    }
+    
+    //leaves are COMBINED: the first one to get the controller lock takes every leave waiting and removes them
+    //from the tree as one batch, one task per stripe, followed by ONE new GK for all of them
+    //returns the replica sequence number of the leave, 0 if there is no standby
+    private long removeMember(UUID memberID) {
+        PendingLeave leave = new PendingLeave(memberID);
+        pendingLeaves.add(leave);
+        synchronized (this) {
+            if (!leave.done) {
+                removeMembers();
+            }
+        }
+        return leave.replicaSeq;
+    }
+    
+    private synchronized void removeMembers() {
+        Map<UUID, PendingLeave> batch = new LinkedHashMap<>();
+        PendingLeave next;
+        while ((next = pendingLeaves.poll()) != null) {
+            next.done = true;
+            batch.put(next.memberID, next);
+        }
+        long start = System.nanoTime();
+        List<UUID> left = tree.removeAll(new ArrayList<>(batch.keySet()), cryptoPool);
+        treeUpdate.recordSince(start);
+        if (left.isEmpty()) {
+            return;
+        }
+        for (UUID memberID : left) {
+            Member removed = groupMembers.remove(memberID); 
+            if (removed != null) {
+                removed.removed = true;
+                if (removed.draining.compareAndSet(false, true)) {
+                    fanOut.submit(new MemberSender(removed)); //to let go of its endpoint
+                }
+            }
+            relay.forget(memberID);
+        }
+        if (left.size() == 1) {
+            uiData.state = "A member has been removed. member ID is: " + left.get(0);
+        } else {
+            uiData.state = left.size() + " members have been removed.";
+        }
+        uiData.memCount -= left.size();
+        if (cluster == null) {
+            SecretKey groupKey = Security.generateRandomKey();
+            byte[] GK = groupKey.getEncoded();
+            long seq = 0;
+            for (UUID memberID : left) { //the standby replays each leave, all at the same epoch
+                ByteBuffer buffer = ByteBuffer.allocate(8 + 16 + GK.length);
+                buffer.putLong(keyEpoch + 1);
+                WireCodec.putUUID(buffer, memberID);
+                buffer.put(GK);
+                seq = replicate(RequestCode.REPLICA_LEAVE, buffer.array());
+                batch.get(memberID).replicaSeq = seq;
+            }
+            //no member gets the new GK before the standby has it -- held under the lock, so no later
+            //change can reach a member first either (one wait per leave batch, not per leave)
+            try {
+                awaitReplica(seq);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            applyLeaveEpoch(keyEpoch + 1, true, groupKey);
+        } else {
+            try {
+                cluster.requestLeaveEpoch();
+            } catch (IOException ex) {
+                Logger.getLogger(GroupController.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+    
+    //---- STANDBY replication, everything here runs under the controller lock ----
+    
+    private void replicateJoins(List<PendingJoin> batch) {
+        if (replicator == null) {
+            return;
+        }
+        int size = 8 + 4;
+        for (PendingJoin join : batch) {
+            size += 16 + 4 + join.key.getEncoded().length + 4 + WireCodec.addressSize(join.address);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putLong(keyEpoch);
+        buffer.putInt(batch.size());
+        for (PendingJoin join : batch) {
+            byte[] key = join.key.getEncoded();
+            WireCodec.putUUID(buffer, join.memberID);
+            buffer.putInt(key.length);
+            buffer.put(key);
+            buffer.putInt(join.port);
+            WireCodec.putAddress(buffer, join.address);
+        }
+        long seq = replicate(RequestCode.REPLICA_JOIN, buffer.array());
+        for (PendingJoin join : batch) {
+            join.replicaSeq = seq;
+        }
+    }
+    
+    private long replicate(int code, byte[] payload) {
+        Replicator current = replicator;
+        if (current == null || current.isClosed()) {
+            return 0;
+        }
+        current.append(code, ++replicaSeq, payload);
+        return replicaSeq;
+    }
+    
+    //the whole controller state a standby starts from -- later changes follow it on the same stream
+    private synchronized void attachStandby(Replicator next) {
+        if (replicator != null) {
+            replicator.close();
+        }
+        byte[] snapshot = tree.snapshot(System.nanoTime());
+        int size = 16 + 8 + 4 + snapshot.length + 4;
+        for (Member member : groupMembers.values()) {
+            size += 16 + 4 + WireCodec.addressSize(member.address);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        WireCodec.putUUID(buffer, serverID);
+        buffer.putLong(keyEpoch);
+        buffer.putInt(snapshot.length);
+        buffer.put(snapshot);
+        buffer.putInt(groupMembers.size());
+        for (Map.Entry<UUID, Member> entry : groupMembers.entrySet()) {
+            WireCodec.putUUID(buffer, entry.getKey());
+            buffer.putInt(entry.getValue().port);
+            WireCodec.putAddress(buffer, entry.getValue().address);
+        }
+        next.start(replicaSeq, buffer.array());
+        replicator = next;
+        uiData.state = "A standby controller is now replicating this controller.";
+        uiData.update();
+    }
+    
+    //a join/leave reply waits until the standby has the change -- a member never hears of a change
+    //the standby would not know about after taking over (unless the standby is too slow, then it goes anyway)
+    private void awaitReplica(long seq) throws InterruptedException {
+        Replicator current = replicator;
+        if (seq == 0 || current == null) {
+            return;
+        }
+        if (!current.awaitAck(seq, REPLICA_ACK_TIMEOUT_MILLIS)) {
+            Logger.getLogger(GroupController.class.getName()).log(Level.WARNING, 
+                    "Standby did not confirm replica seq {0} in time", seq);
+        }
+    }
+    
+    //the primary is gone: new GK for everyone, under each member's OWN key (a member may have missed
+    //the primary's last frames, so the middle keys can't be trusted), along with where to find us now
+    //and the secret of its stripe -- the primary's never left it, see StripedTree(byte[] snapshot)
+    private synchronized void takeOver() {
+        setGroupKey(keyEpoch + FAILOVER_EPOCH_GAP, Security.generateRandomKey());
+        InetAddress address;
+        try {
+            address = InetAddress.getLocalHost();
+        } catch (IOException ex) {
+            address = InetAddress.getLoopbackAddress();
+        }
+        byte[] GK = tree.getGroupKey().getEncoded();
+        int skipped = 0;
+        FanOutTimer timer = new FanOutTimer();
+        for (Map.Entry<UUID, Member> entry : groupMembers.entrySet()) {
+            byte[] secret = tree.getStripeSecret(entry.getKey()).getEncoded();
+            ByteBuffer buffer = ByteBuffer.allocate(8 + 4 + WireCodec.addressSize(address) + 4 + secret.length + GK.length);
+            buffer.putLong(keyEpoch);
+            buffer.putInt(port);
+            WireCodec.putAddress(buffer, address);
+            buffer.putInt(secret.length);
+            buffer.put(secret);
+            buffer.put(GK);
+            byte[] encrypted = Security.AESEncrypt(tree.getMemberKey(entry.getKey()), buffer.array());
+            if (enqueue(entry.getValue(), new Frame(RequestCode.FAILOVER, encrypted, timer))) {
+                skipped++;
+            }
+            entry.getValue().epoch = keyEpoch;
+        }
+        recordFanOut(skipped, timer);
+    }
+    
+    //new random GK -- ours is true if the leave was on this controller
+    //the stripes a leave has exposed since the last GK send it under the middle keys that are still safe,
+    //every other stripe once under its root key (a leave on ANOTHER node exposes nothing here)
+    private synchronized void applyLeaveEpoch(long epoch, boolean ours, SecretKey groupKey) {
+        flushJoinNotices(); //the middle keys are built from the current GK, every member must have it
+        long start = System.nanoTime();
+        TraceEvent event = TraceEvent.begin(TraceEvent.Type.REKEY_FAN_OUT);
+        int payloadBytes = 0;
+        Map<UUID, byte[]> encrypted = tree.commitGroupKey(groupKey, cryptoPool);
+        setGroupKey(epoch, groupKey);
+        int skipped = 0;
+        FanOutTimer timer = new FanOutTimer();
+        for (Map.Entry<UUID, byte[]> entry : encrypted.entrySet()) {
+            Member member = groupMembers.get(entry.getKey());
+            if (member == null) { //in the tree, still waiting for its join epoch
+                continue;
+            }
+            byte[] encryptedGK = entry.getValue();
+            ByteBuffer buffer = ByteBuffer.allocate(8 + encryptedGK.length);
+            buffer.putLong(keyEpoch);
+            buffer.put(encryptedGK);
+            if (enqueue(member, new Frame(RequestCode.KEY_UPDATE_LEAVE, buffer.array(), timer))) {
+                skipped++;
+            }
+            member.epoch = keyEpoch;
+            payloadBytes += buffer.capacity();
+        }
+        rekey.recordSince(start);
+        if (TraceEvent.isEnabled()) {
+            event.setMemberCount(groupMembers.size());
+            event.setPathLength(tree.getDepth());
+            event.setExposedNodes(ours ? tree.getExposedCount() : 0);
+            event.setPayloadBytes(payloadBytes);
+            event.commit();
+        }
+        recordFanOut(skipped, timer);
+        uiData.groupKey = tree.getGroupKey().getEncoded();
+        if (!ours) {
+            uiData.state = "A member has left the group on another controller node.";
+        }
+        uiData.update();
+    }
             
-    private void handleJoin(final ObjectInputStream in, final ObjectOutputStream out) {
+    //joins run in stages: this handler thread only does the I/O, the crypto runs on cryptoPool
+    //and the tree insert is done by the JoinInserter -- so join throughput is not capped by handshake latency
+    private void handleJoin(final DataInputStream in, final DataOutputStream out, final boolean compression) {
+        long start = System.nanoTime();
         try {
             //START OF MEMBER AUTHENTICATICATION PHASE
-            out.writeObject(signedKey);
-            SignedObject signed = (SignedObject)in.readObject();
-            boolean isVerified = Security.verifyTrustedSigned(signed);
+            WireCodec.writeSignedKey(out, signedKey);
+            out.flush();
+            final Security.SignedKey signed = WireCodec.readSignedKey(in);
+            boolean isVerified = onCryptoPool(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return Security.verifyTrustedSigned(signed);
+                }
+            });
             if (!isVerified) {
                 uiData.state = "Member cannot be trusted! Refuse connection!";
                 uiData.update();
                 in.close(); out.close();
                 return;
             }
-            PublicKey otherPub = (PublicKey)signed.getObject();
+            final PublicKey otherPub = signed.getKey();
             //END OF AUTHENTICATION PHASE
             //START OF JOIN/KEY EXCHANGE PHASE            
-            int N1 = (int)(100 * Math.random() * Math.random());
-            String message = serverID.toString() + "::" + N1;
-            out.writeUTF(message);
+            int N1 = Security.generateNonce();
+            WireCodec.writeUUID(out, serverID);
+            out.writeInt(N1);
             out.flush();
-            message = in.readUTF();
-            String parts[] = message.split("::");
-            int N1Received = Integer.parseInt(parts[0]);
+            int N1Received = in.readInt();
+            UUID memID = WireCodec.readUUID(in);
+            int N2Received = in.readInt();
+            int memberPort = in.readInt();
+            InetAddress memberAddress = WireCodec.readAddress(in);
             if (N1 != N1Received) {
                 uiData.state = "Connection Failed -- Back Out";
                 uiData.update();
                 return;
             }
-            UUID memID = UUID.fromString(parts[1]);
-            int N2Received = Integer.parseInt(parts[2]);
-            int memberPort = Integer.parseInt(parts[3]);
-            InetAddress memberAddress = InetAddress.getByName(parts[4]);
-            SecretKey sharedKey = Security.ECDHKeyAgreement(in, out, otherPub, privKey);
+            final Security.ECDHState ecdh = onCryptoPool(new Callable<Security.ECDHState>() {
+                @Override
+                public Security.ECDHState call() {
+                    return Security.ECDHStart(otherPub);
+                }
+            });
+            WireCodec.writeBytes(out, ecdh.getEncryptedPubKey());
+            out.flush();
+            final byte[] otherEncrypted = WireCodec.readBytes(in);
+            SecretKey sharedKey = onCryptoPool(new Callable<SecretKey>() {
+                @Override
+                public SecretKey call() {
+                    return Security.ECDHFinish(ecdh, privKey, otherEncrypted);
+                }
+            });
             
-            message = "" + memberPort + "::" + N2Received + "::" + memID.toString() + "::" + tree.getRootCode();
-            byte[] encryptedMessage = Security.AESEncrypt(sharedKey, message.getBytes(StandardCharsets.UTF_8));
-            writeOutBuffer(out, encryptedMessage);
+            String rootCode = tree.getRootCode(memID);
+            InetSocketAddress group = dataPlane;
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 16 + WireCodec.stringSize(rootCode) 
+                    + (group == null ? 0 : 4 + WireCodec.addressSize(group.getAddress())));
+            buffer.putInt(memberPort);
+            buffer.putInt(N2Received);
+            WireCodec.putUUID(buffer, memID);
+            WireCodec.putString(buffer, rootCode);
+            if (group != null) {
+                buffer.putInt(group.getPort());
+                WireCodec.putAddress(buffer, group.getAddress());
+            }
+            byte[] encryptedMessage = Security.AESEncrypt(sharedKey, buffer.array());
+            WireCodec.writeBytes(out, encryptedMessage);
+            out.flush();
             
-            addMember(memID, memberPort, memberAddress, sharedKey);
-            String parentCode = tree.getParentCode(memID);
-            encryptedMessage = Security.AESEncrypt(sharedKey, parentCode.getBytes(StandardCharsets.UTF_8));
-            writeOutBuffer(out, encryptedMessage);
+            PendingJoin join = new PendingJoin(memID, memberPort, memberAddress, sharedKey);
+            join.compression = compression;
+            pendingJoins.put(join);
+            if (!join.done.await(JOIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) && abandonJoin(join)) {
+                uiData.state = "Join timed out -- Back Out";
+                uiData.update();
+                return;
+            }
+            if (join.groupKey == null) {
+                return;
+            }
+            awaitReplica(join.replicaSeq);
+            encryptedMessage = Security.AESEncrypt(sharedKey, join.parentCode.getBytes(StandardCharsets.UTF_8));
+            WireCodec.writeBytes(out, encryptedMessage);
                        
-            encryptedMessage = Security.AESEncrypt(sharedKey, tree.getGroupKey().getEncoded());
-            writeOutBuffer(out, encryptedMessage);
+            byte[] GK = join.groupKey.getEncoded();
+            byte[] secret = join.stripeSecret.getEncoded();
+            buffer = ByteBuffer.allocate(8 + 4 + secret.length + GK.length);
+            buffer.putLong(join.epoch);
+            buffer.putInt(secret.length);
+            buffer.put(secret);
+            buffer.put(GK);
+            encryptedMessage = Security.AESEncrypt(sharedKey, buffer.array());
+            WireCodec.writeBytes(out, encryptedMessage);
+            out.flush();
+            joinHandshake.recordSince(start);
             //END OF JOIN/KEY EXCHANGE PHASE
-        } catch (IOException | ClassNotFoundException ex) {
+        } catch (IOException ex) {
             Logger.getLogger(GroupController.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    //runs a piece of handshake crypto on the crypto pool, the calling handler thread just waits
+    private <T> T onCryptoPool(Callable<T> task) throws IOException, InterruptedException {
+        try {
+            return cryptoPool.submit(task).get();
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
         }
     }
         
-    private void handleLeave(final ObjectInputStream in, final ObjectOutputStream out) {
+    private void handleLeave(final DataInputStream in, final DataOutputStream out) {
         try {
-            int N1 = (int)(100 * Math.random() * Math.random());
-            String message = "" + serverID.toString() + "::" + N1;
-            out.writeUTF(message);
+            int N1 = Security.generateNonce();
+            WireCodec.writeUUID(out, serverID);
+            out.writeInt(N1);
             out.flush();
-            message = in.readUTF();
-            String parts[] = message.split("::");
-            int N1Received = Integer.parseInt(parts[0]);
+            int N1Received = in.readInt();
+            UUID memID = WireCodec.readUUID(in);
+            int N2Received = in.readInt();
             if (N1 != N1Received) {
                 System.out.println("Connection Failed -- Back Out");
                 return;
             }
-            UUID memID = UUID.fromString(parts[1]);
-            int N2Received = Integer.parseInt(parts[2]);
-            removeMember(memID);
+            awaitReplica(removeMember(memID));
             out.writeInt(N2Received);
             out.flush();
         } catch (IOException ex) {
             Logger.getLogger(GroupController.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    //one batch from the relay -- encrypted ONCE under the GK, the same frame goes to every member
+    //the frame names its key epoch, members keep recent keys (and hold messages for keys they don't have yet),
+    //so this does NOT take the controller lock or wait for rekeys -- it uses whatever GK is current
+    //in CLUSTER mode the plain batch also goes to the coordinator, every other node fans it out to its members
+    private void sendMessages(List<MessageRelay.Message> batch) {
+        byte[] payload = MessageRelay.encodeBatch(batch);
+        if (cluster != null) {
+            try {
+                cluster.relay(payload);
+            } catch (IOException ex) {
+                Logger.getLogger(GroupController.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        fanOutMessages(payload);
+        long now = System.nanoTime();
+        for (MessageRelay.Message message : batch) {
+            messageRelay.record(now - message.getReceivedNanos());
+        }
+        synchronized (this) {
+            if (batch.size() == 1) {
+                uiData.state = "Message: \"" + new String(batch.get(0).getBody(), StandardCharsets.UTF_8) + "\" sent to group.";
+            } else {
+                uiData.state = batch.size() + " messages sent to group.";
+            }
+            uiData.update();
         }
     }
     
-    private synchronized void sendMessage(byte[] message) {
+    //one frame per form the batch goes out in -- compressed and/or plain -- each encrypted once
+    private void fanOutMessages(byte[] payload) {
+        EpochKey key = currentKey;
+        FanOutTimer timer = new FanOutTimer();
+        byte[] compressed = compression ? Compression.compress(payload, dictionary) : null;
+        Frame compressedFrame = compressed == null ? null 
+                : messageFrame(key, RequestCode.RECEIVE_MESSAGE | RequestCode.COMPRESSED, compressed, timer);
+        Frame plainFrame = null;
+        int skipped = 0;
+        for (Member member : groupMembers.values()) {
+            Frame frame = member.compression ? compressedFrame : null;
+            if (frame == null) {
+                if (plainFrame == null) {
+                    plainFrame = messageFrame(key, RequestCode.RECEIVE_MESSAGE, payload, timer);
+                }
+                frame = plainFrame;
+            }
+            if (enqueue(member, frame)) {
+                skipped++;
+            }
+        }
+        recordFanOut(skipped, timer);
+    }
+    
+    private Frame messageFrame(EpochKey key, int code, byte[] payload, FanOutTimer timer) {
+        byte[] encryptedMessage = Security.AESEncrypt(key.groupKey, payload);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + encryptedMessage.length);
+        buffer.putLong(key.epoch);
+        buffer.put(encryptedMessage);
+        return new Frame(code, buffer.array(), timer);
+    }
+    
+    //a message for the members under one middle node only -- encrypted ONCE under that node's middle key, which
+    //members on the node's path derive from the GK the same way they do for a leave rekey, and queued only for them
+    //runs under the lock so the audience is the tree's as of the frame's epoch: a member moved by a leave
+    //gets its new parentCode in the rekey queued ahead of this frame
+    //not batched with (or ordered against) the sender's group messages, and not passed on to a cluster's other nodes
+    private synchronized void sendToSubtree(UUID sender, String nodeCode, byte[] body) {
+        if (!nodeCode.startsWith(tree.getRootCode())) {
+            return; //not a node of this tree
+        }
+        List<UUID> audience = tree.membersUnder(nodeCode);
+        if (audience.isEmpty()) {
+            return;
+        }
+        EpochKey key = currentKey;
+        SecretKey middleKey = Security.middleKeyCalculation(key.groupKey, nodeCode);
+        ByteBuffer plain = ByteBuffer.allocate(16 + body.length);
+        WireCodec.putUUID(plain, sender);
+        plain.put(body);
+        byte[] encrypted = Security.AESEncrypt(middleKey, plain.array());
+        ByteBuffer buffer = ByteBuffer.allocate(8 + WireCodec.stringSize(nodeCode) + encrypted.length);
+        buffer.putLong(key.epoch);
+        WireCodec.putString(buffer, nodeCode);
+        buffer.put(encrypted);
+        Frame frame = new Frame(RequestCode.RECEIVE_SUBTREE, buffer.array(), new FanOutTimer());
+        int skipped = 0;
+        for (UUID id : audience) {
+            Member member = groupMembers.get(id);
+            if (member != null && enqueue(member, frame)) {
+                skipped++;
+            }
+        }
+        recordFanOut(skipped, frame.timer);
+        uiData.state = "Message sent to the " + audience.size() + " member(s) under " + nodeCode + ".";
+        uiData.update();
+    }
+    
+    //relays a member's stream as it comes in, each chunk re-sealed under the GK of the moment and queued for
+    //every member -- one frame is shared by all the queues, so a stream costs at most queueDepth chunks here
+    //however long it is, a slow member holding up the rest is handled by the overflow policy as usual
+    //streams are not passed on to the other nodes of a cluster
+    private void relayStream(UUID memberId, DataInputStream in) throws IOException {
+        SecretKey key = tree.getMemberKey(memberId);
+        if (key == null) {
+            return;
+        }
+        long streamID = 0;
+        int next = 0;
         try {
-            byte[] encryptedMessage = Security.AESEncrypt(tree.getGroupKey(), message);
-            List<MultiUnicast> tasks = new ArrayList<>();
-            for (Member member : groupMembers.values()) {
-                tasks.add(new MultiUnicast(encryptedMessage, member, RequestCode.RECEIVE_MESSAGE));
+            StreamChunk chunk;
+            do {
+                chunk = StreamChunk.open(key, WireCodec.readBytes(in));
+                if (next == 0) {
+                    streamID = chunk.getStreamID();
+                } else if (chunk.getStreamID() != streamID) {
+                    throw new IOException("Chunk of stream " + chunk.getStreamID() + " inside stream " + streamID);
+                }
+                if (chunk.getIndex() != next++) {
+                    throw new IOException("Stream chunk " + chunk.getIndex() + " out of order");
+                }
+                fanOutChunk(memberId, chunk);
+            } while (!chunk.isLast());
+        } catch (IOException ex) {
+            if (next > 0) { //the members already have part of it
+                fanOutChunk(memberId, new StreamChunk(streamID, next, StreamChunk.ABORTED, new byte[0]));
             }
-            executor.invokeAll(tasks);
-            uiData.state = "Message: \"" + new String(message, StandardCharsets.UTF_8) + "\" sent to group.";
+            throw ex;
+        }
+        synchronized (this) {
+            uiData.state = "A stream of " + next + " chunks from " + memberId + " relayed to the group.";
             uiData.update();
-        } catch (InterruptedException ex) {
-            Logger.getLogger(GroupController.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
     
-    private void writeOutBuffer(ObjectOutputStream out, byte[] buffer) throws IOException {
-        int length = buffer.length;
-        out.writeInt(length);
-        out.write(buffer);
-        out.flush();
+    private void fanOutChunk(UUID sender, StreamChunk chunk) {
+        EpochKey key = currentKey;
+        byte[] sealed = chunk.seal(key.groupKey);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 16 + sealed.length);
+        buffer.putLong(key.epoch);
+        WireCodec.putUUID(buffer, sender);
+        buffer.put(sealed);
+        Frame frame = new Frame(RequestCode.RECEIVE_STREAM, buffer.array(), new FanOutTimer());
+        int skipped = 0;
+        for (Member member : groupMembers.values()) {
+            if (enqueue(member, frame)) {
+                skipped++;
+            }
+        }
+        recordFanOut(skipped, frame.timer);
+    }
+    
+    //queues a frame for a member and makes sure a sender is scheduled to drain its queue
+    //applies the overflow policy when the member has no room for another message
+    //returns true if the member was skipped -- its breaker is open, the frame just waits in its queue
+    private boolean enqueue(final Member member, final Frame frame) {
+        boolean skipped = member.breaker.isOpen();
+        if (frame.timer != null) {
+            frame.timer.add(); //before the offer, a sender may complete it right away
+        }
+        if (frame.key) {
+            if (!member.offerKeyFrame(frame)) {
+                Logger.getLogger(GroupController.class.getName()).log(Level.WARNING, 
+                        "Member at {0}:{1} is {2} key frames behind, removing it", 
+                        new Object[] {member.address, member.port, MAX_KEY_BACKLOG});
+                evict(member);
+                frame.done();
+                return skipped;
+            }
+        } else if (member.room.tryAcquire() || awaitRoom(member)) {
+            member.outbound.add(frame);
+        } else {
+            frame.done();
+            return skipped;
+        }
+        if (member.draining.compareAndSet(false, true)) {
+            fanOut.submit(new MemberSender(member));
+        }
+        return skipped;
     }
     
-    //randomly generate new GK
-    private void updateKeyOnLeave() {
-        tree.setGroupKey(Security.generateRandomKey());
+    //the overflow policy -- true once the member has room for the message
+    private boolean awaitRoom(Member member) {
+        switch (overflow) {
+            case BLOCK:
+                try {
+                    member.room.acquire();
+                    return true;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            case EVICT:
+                evict(member);
+                return false;
+            default:
+                Logger.getLogger(GroupController.class.getName()).log(Level.WARNING, 
+                        "Outbound queue full, message dropped for member at {0}:{1}", 
+                        new Object[] {member.address, member.port});
+                return false;
+        }
     }
     
-    //new GK is hash of old GK
-    private void updateKeyOnJoin() {
-        tree.setGroupKey(Security.updateKey(tree.getGroupKey()));
+    private void recordFanOut(int skipped, FanOutTimer timer) {
+        timer.release();
+        lastFanOutSkipped = skipped;
+        if (skipped > 0) {
+            totalSkipped.addAndGet(skipped);
+            Logger.getLogger(GroupController.class.getName()).log(Level.FINE, 
+                    "{0} member(s) skipped in fan-out, circuit breaker open", skipped);
+        }
+    }
+    
+    //removal runs on a worker, NOT inline -- the caller is usually holding the controller lock mid fan-out
+    private void evict(final Member member) {
+        if (!member.evicted.compareAndSet(false, true)) {
+            return;
+        }
+        final UUID memberID = findMemberId(member);
+        if (memberID == null) {
+            return;
+        }
+        fanOut.execute(new Runnable() {
+            @Override
+            public void run() {
+                forceLeave(memberID);
+            }
+        });
+    }
+    
+    private synchronized UUID findMemberId(Member member) {
+        for (Map.Entry<UUID, Member> entry : groupMembers.entrySet()) {
+            if (entry.getValue() == member) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+    
+    private void setGroupKey(long epoch, SecretKey groupKey) {
+        tree.setGroupKey(groupKey);
+        keyEpoch = epoch;
+        currentKey = new EpochKey(keyEpoch, groupKey);
     }
     
     @Override
@@ -247,95 +1189,541 @@ public class GroupController {
                 "\nRootCode: " + tree.getRootCode() + "  " + tree.toString();
     }
     
-    private class MultiUnicast implements Callable<Void> {
-        Member member;
-        int requestCode;
-        byte[] message;
+    //the GK together with its epoch, replaced (never changed) on every rekey
+    private static class EpochKey {
+        final long epoch;
+        final SecretKey groupKey;
         
-        private MultiUnicast(byte[] message, Member member, int code) {
-            this(member, code);
+        private EpochKey(long epoch, SecretKey groupKey) {
+            this.epoch = epoch;
+            this.groupKey = groupKey;
+        }
+    }
+    
+    //a join that finished its handshake and is waiting for the JoinInserter
+    private static class PendingJoin {
+        final UUID memberID;
+        final int port;
+        final InetAddress address;
+        final SecretKey key;
+        final CountDownLatch done;
+        boolean compression; //the member can take compressed messages
+        boolean abandoned; //the handler timed out, guarded by the controller lock
+        String parentCode; //set by the JoinInserter
+        SecretKey groupKey;
+        SecretKey stripeSecret;
+        long epoch;
+        long replicaSeq;
+        
+        private PendingJoin(UUID memberID, int port, InetAddress address, SecretKey key) {
+            this.memberID = memberID;
+            this.port = port;
+            this.address = address;
+            this.key = key;
+            this.done = new CountDownLatch(1);
+        }
+    }
+    
+    //a leave waiting for the lock, see removeMember -- guarded by the controller lock
+    private static class PendingLeave {
+        final UUID memberID;
+        boolean done; //taken into a batch
+        long replicaSeq;
+        
+        private PendingLeave(UUID memberID) {
+            this.memberID = memberID;
+        }
+    }
+    
+    //the single writer for joins: takes every join waiting and puts them into the tree as one batch
+    private class JoinInserter implements Runnable {
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    List<PendingJoin> batch = new ArrayList<>();
+                    PendingJoin first = pendingJoins.poll(MessageRelay.MAX_HOLD_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    pendingJoins.drainTo(batch, MAX_JOIN_BATCH - 1);
+                    try {
+                        addMembers(batch);
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(GroupController.class.getName()).log(Level.SEVERE, null, ex);
+                        failJoins(batch);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    //GK changes and relayed messages from the ClusterCoordinator, in the coordinator's epoch order
+    private class ClusterListener implements ClusterLink.Listener {
+        @Override
+        public void joinEpoch(long epoch, boolean ours) {
+            applyJoinEpoch(epoch, ours);
+        }
+        
+        @Override
+        public void leaveEpoch(long epoch, boolean ours, SecretKey groupKey) {
+            applyLeaveEpoch(epoch, ours, groupKey);
+        }
+        
+        @Override
+        public void relayed(byte[] batch) {
+            fanOutMessages(batch);
+        }
+    }
+    
+    //the primary's joins and leaves, replayed on this standby's copy of the tree in the primary's order
+    //the tree makes the same choices it made on the primary, nothing is sent to members
+    private class StandbyListener implements StandbyLink.Listener {
+        @Override
+        public void joined(long epoch, List<StandbyLink.Joined> batch) {
+            synchronized (GroupController.this) {
+                for (StandbyLink.Joined joined : batch) {
+                    tree.add(joined.getMemberID(), joined.getKey());
+                }
+                setGroupKey(epoch, Security.updateKey(tree.getGroupKey()));
+                for (StandbyLink.Joined joined : batch) {
+                    Member member = new Member(joined.getMemberID(), joined.getPort(), joined.getAddress());
+                    member.epoch = epoch;
+                    groupMembers.put(joined.getMemberID(), member);
+                }
+                uiData.memCount = groupMembers.size();
+                uiData.groupKey = tree.getGroupKey().getEncoded();
+                uiData.update();
+            }
+        }
+        
+        @Override
+        public void left(long epoch, UUID memberID, SecretKey groupKey) {
+            synchronized (GroupController.this) {
+                try {
+                    tree.remove(memberID);
+                } catch (Exceptions.NoMemberException ex) {
+                    Logger.getLogger(GroupController.class.getName()).log(Level.SEVERE, null, ex);
+                }
+                groupMembers.remove(memberID);
+                setGroupKey(epoch, groupKey);
+                uiData.memCount = groupMembers.size();
+                uiData.groupKey = tree.getGroupKey().getEncoded();
+                uiData.update();
+            }
+        }
+        
+        @Override
+        public void primaryLost() {
+            if (closed) {
+                return;
+            }
+            takeOver();
+            startListening(port);
+            uiData.state = "Primary controller lost. This standby has taken over the group.";
+            uiData.update();
+        }
+    }
+    
+    //accepts the standby controller's replication connection
+    private class ReplicationServer implements Runnable {
+        final int port;
+        
+        private ReplicationServer(int port) {
+            this.port = port;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                ServerSocket server = new ServerSocket();
+                server.setReuseAddress(true);
+                server.bind(new InetSocketAddress(port));
+                listeners.add(server);
+                while (!closed) {
+                    Socket socket = server.accept();
+                    try {
+                        Replicator next = Replicator.accept(socket, signedKey, privKey);
+                        if (next != null) {
+                            attachStandby(next);
+                            fanOut.execute(next);
+                            fanOut.execute(next.acknowledgements());
+                        }
+                    } catch (IOException ex) {
+                        Logger.getLogger(GroupController.class.getName()).log(Level.SEVERE, null, ex);
+                        closeQuietly(socket);
+                    }
+                }
+            } catch (IOException ex) {
+                if (!closed) {
+                    Logger.getLogger(GroupController.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+    
+    //a request code plus optional payload, queued for one member
+    //the same Frame instance is shared by every member it fans out to
+    private static class Frame {
+        final int requestCode;
+        final byte[] message;
+        final FanOutTimer timer; //null for frames that aren't part of a fan-out
+        final boolean key; //the member's keys depend on it, it is never dropped
+        
+        private Frame(int code, byte[] message) {
+            this(code, message, null);
+        }
+        
+        private Frame(int code, byte[] message, FanOutTimer timer) {
+            this.requestCode = code;
             this.message = message;
+            this.timer = timer;
+            this.key = code == RequestCode.KEY_UPDATE_JOIN || code == RequestCode.KEY_UPDATE_LEAVE
+                    || code == RequestCode.FAILOVER || code == RequestCode.COMPRESSION_DICTIONARY
+                    || code == RequestCode.FORCE_REMOVE;
+        }
+        
+        //sent, or never will be
+        private void done() {
+            if (timer != null) {
+                timer.done();
+            }
         }
+    }
+    
+    //times one fan-out until its last frame is sent -- one count per queued frame, plus one the producer
+    //holds until it has queued them all (released by recordFanOut), so it can't complete half way
+    //frames lost with a removed member never complete, their fan-out just isn't recorded
+    private class FanOutTimer {
+        final long start = System.nanoTime();
+        final AtomicInteger pending = new AtomicInteger(1);
         
-        private MultiUnicast(Member member, int code) {
+        private void add() {
+            pending.incrementAndGet();
+        }
+        
+        private void done() {
+            if (pending.decrementAndGet() == 0) {
+                fanOutLatency.recordSince(start);
+            }
+        }
+        
+        private void release() {
+            done();
+        }
+    }
+    
+    //drains a member's queue over its host's connection -- up to SEND_BATCH frames go out back to back,
+    //each tagged with the member's ID so the host can hand it to the right member, then the sender
+    //resubmits itself for the rest
+    //only one MemberSender runs per member at a time, so frames arrive in the order they were queued
+    //senders for members of the same host take turns on the connection, it stays open for the next drain,
+    //is only reopened after a failure, and closed once the last member of the host is removed
+    //the connect has a timeout and each batch a deadline, after which the socket is closed under it
+    //a failed send counts against the member's breaker and puts the KEY frames of its batch back at the
+    //FRONT of the queue -- the member may have some of them already, it ignores a key update it is past --
+    //its messages may have been delivered too, they are dropped rather than sent twice
+    //while the breaker is open no sends are tried -- the frames wait (messages until the overflow policy
+    //kicks in, key frames until MAX_KEY_BACKLOG)
+    private class MemberSender implements Runnable {
+        final Member member;
+        
+        private MemberSender(Member member) {
             this.member = member;
-            this.requestCode = code;
         }
         
         @Override
-        public Void call() {
-            try (Socket socket = new Socket(member.address, member.port)) {
-                DataOutputStream out = new DataOutputStream(socket.getOutputStream()); 
-                out.writeInt(requestCode);
-                switch (requestCode) {
-                    case RequestCode.RECEIVE_MESSAGE:
-                    case RequestCode.KEY_UPDATE_LEAVE:
-                        out.writeInt(message.length);
-                        out.write(message);
-                        break;
-                    default:
-                        break;
+        public void run() {
+            if (member.removed && member.outbound.isEmpty()) { //nothing more will be sent, let go of the endpoint
+                release(member);
+                member.draining.set(false);
+                return;
+            }
+            if (!member.breaker.allowRequest()) {
+                retryLater();
+                return;
+            }
+            List<Frame> sent = new ArrayList<>();
+            boolean failed = false;
+            Endpoint endpoint = member.endpoint;
+            synchronized (endpoint) {
+                long start = System.nanoTime();
+                Transport.Connection connection = endpoint.connection;
+                ScheduledFuture<?> deadline = null;
+                try {
+                    if (connection == null) {
+                        connection = transport.connect(endpoint.address, endpoint.port, CONNECT_TIMEOUT_MILLIS);
+                        connectionsOpened.incrementAndGet();
+                        endpoint.connection = connection;
+                    }
+                    //the rest of the deadline, the connect had its own timeout
+                    final Transport.Connection open = connection;
+                    deadline = deadlines.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            closeQuietly(open);
+                        }
+                    }, SEND_DEADLINE_MILLIS - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), TimeUnit.MILLISECONDS);
+                    DataOutputStream out = connection.getOutput(); 
+                    int before = out.size();
+                    Frame frame;
+                    while (sent.size() < SEND_BATCH && (frame = member.poll()) != null) {
+                        sent.add(frame);
+                        WireCodec.writeHeader(out, frame.requestCode);
+                        WireCodec.writeUUID(out, member.id);
+                        if (frame.message != null) {
+                            WireCodec.writeBytes(out, frame.message);
+                        }
+                    }
+                    out.flush();
+                    bytesSent.addAndGet(out.size() - before);
+                    member.breaker.onSuccess();
+                    for (Frame done : sent) {
+                        done.done();
                     }
-                out.flush();
                 } catch (IOException ex) {
-                Logger.getLogger(GroupController.class.getName()).log(Level.SEVERE, null, ex);
+                    failed = true;
+                    failedSends.incrementAndGet();
+                    member.breaker.onFailure();
+                    Logger.getLogger(GroupController.class.getName()).log(Level.WARNING, 
+                            "Send to member at {0}:{1} failed: {2}", new Object[] {member.address, member.port, ex.toString()});
+                    //the host's other members reconnect on their next send
+                    if (connection != null) {
+                        closeQuietly(connection);
+                        endpoint.connection = null;
+                    }
+                } finally {
+                    if (deadline != null) {
+                        deadline.cancel(false);
+                    }
+                }
+            }
+            if (failed && !member.removed) {
+                tree.resendParentCode(member.id); //a code in the failed batch may not have reached it
+                requeue(sent);
+                retryLater();
+                return;
+            }
+            if (failed) {
+                member.clear(); //gone from the group and unreachable, give up on it
+            }
+            if (member.removed && member.outbound.isEmpty()) {
+                release(member);
+            }
+            member.draining.set(false);
+            //frames queued after our last poll still need a sender
+            if (!member.outbound.isEmpty() && member.draining.compareAndSet(false, true)) {
+                fanOut.submit(this);
+            }
+        }
+        
+        //in reverse, so they end up back at the front in their original order
+        private void requeue(List<Frame> sent) {
+            int dropped = 0;
+            for (int i = sent.size() - 1; i >= 0; i--) {
+                Frame frame = sent.get(i);
+                if (frame.key) {
+                    member.keyBacklog.incrementAndGet();
+                    member.outbound.addFirst(frame);
+                } else {
+                    frame.done();
+                    dropped++;
+                }
+            }
+            if (dropped > 0) {
+                Logger.getLogger(GroupController.class.getName()).log(Level.WARNING, 
+                        "{0} message(s) to member at {1}:{2} may not have been sent, dropped", 
+                        new Object[] {dropped, member.address, member.port});
             }
-            return null;
+        }
+        
+        //draining stays set, so nothing else schedules a sender for this member in the meantime
+        private void retryLater() {
+            final MemberSender sender = this;
+            deadlines.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    fanOut.submit(sender);
+                }
+            }, Math.max(member.breaker.retryDelayMillis(), 50), TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private Endpoint acquire(InetAddress address, int port) {
+        InetSocketAddress key = new InetSocketAddress(address, port);
+        synchronized (endpoints) {
+            Endpoint endpoint = endpoints.get(key);
+            if (endpoint == null) {
+                endpoint = new Endpoint(address, port);
+                endpoints.put(key, endpoint);
+            }
+            endpoint.refs++;
+            return endpoint;
+        }
+    }
+    
+    //once per removed member, the host's last member closes the connection
+    private void release(Member member) {
+        if (!member.released.compareAndSet(false, true)) {
+            return;
+        }
+        Endpoint endpoint = member.endpoint;
+        synchronized (endpoints) {
+            if (--endpoint.refs > 0) {
+                return;
+            }
+            endpoints.remove(new InetSocketAddress(endpoint.address, endpoint.port));
+        }
+        synchronized (endpoint) {
+            if (endpoint.connection != null) {
+                closeQuietly(endpoint.connection);
+                endpoint.connection = null;
+            }
+        }
+    }
+    
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ex) {
+            Logger.getLogger(GroupController.class.getName()).log(Level.FINE, null, ex);
         }
     }
     
     private class Server implements Runnable {
-        final private ExecutorService executor;
         final int port;
         
-        private Server(ExecutorService ex, int port) {
-            this.executor = ex;
+        private Server(int port) {
             this.port = port;
         }
         
         @Override
         public void run() {
             try {
-                ServerSocket server = new ServerSocket();
-                server.bind(new InetSocketAddress(port));
-                while (true) {
-                    Socket socket = server.accept();
-                    executor.execute(new RequestHandler(socket));
+                Transport.Listener server = transport.listen(port);
+                listeners.add(server);
+                while (!closed) {
+                    fanOut.execute(new RequestHandler(server.accept()));
                 }
             } catch (IOException ex) {
-                Logger.getLogger(GroupController.class.getName()).log(Level.SEVERE, null, ex);
+                if (!closed) {
+                    Logger.getLogger(GroupController.class.getName()).log(Level.SEVERE, null, ex);
+                }
             }
         }
     }
     
+    //reads which request it is and admits it to its lane -- or sheds it with a reject code, see RequestScheduler
+    //a member's messages past its rate limit are rejected here, before their body is even read
     private class RequestHandler implements Runnable {
-        final Socket socket;
+        final Transport.Connection connection;
+        
+        private RequestHandler(Transport.Connection connection) {
+            this.connection = connection;
+        }
+        
+        @Override
+        public void run() {
+            boolean admitted = false;
+            try {
+                DataOutputStream out = connection.getOutput();
+                DataInputStream in = connection.getInput();
+                int request = WireCodec.readHeader(in);
+                UUID memberId = null;
+                RequestScheduler.Lane lane;
+                switch (request & ~RequestCode.COMPRESSED) {
+                    case RequestCode.REQUEST_JOIN:
+                        lane = RequestScheduler.Lane.JOIN;
+                        break;
+                    case RequestCode.REQUEST_LEAVE:
+                        lane = RequestScheduler.Lane.LEAVE;
+                        break;
+                    case RequestCode.SEND_MESSAGE:
+                    case RequestCode.SEND_STREAM:
+                    case RequestCode.SEND_SUBTREE:
+                        memberId = WireCodec.readUUID(in);
+                        Member member = groupMembers.get(memberId);
+                        TokenBucket bucket = member == null ? null : member.bucket;
+                        if (bucket != null && !bucket.tryAcquire()) {
+                            reject(out, RequestCode.REJECT_RATE_LIMITED);
+                            return;
+                        }
+                        lane = RequestScheduler.Lane.MESSAGE;
+                        break;
+                    default:
+                        return;
+                }
+                admitted = requests.offer(lane, new Request(connection, request, memberId));
+                if (!admitted) {
+                    reject(out, RequestCode.REJECT_OVERLOADED);
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(GroupController.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                if (!admitted) {
+                    closeQuietly(connection);
+                }
+            }
+        }
+        
+        private void reject(DataOutputStream out, int code) throws IOException {
+            rejected.incrementAndGet();
+            WireCodec.writeHeader(out, code);
+            out.flush();
+        }
+    }
+    
+    //an admitted request, run by the RequestScheduler -- the member hears it was admitted once it starts
+    private class Request implements Runnable {
+        final Transport.Connection connection;
+        final int request;
+        final UUID memberId; //already read for messages and streams
         
-        private RequestHandler(Socket clientSocket) {
-            this.socket = clientSocket;
+        private Request(Transport.Connection connection, int request, UUID memberId) {
+            this.connection = connection;
+            this.request = request;
+            this.memberId = memberId;
         }
         
         @Override
         public void run() {
-            try (ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                    ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-                int request = in.readInt();
-                switch (request) {
+            try (Transport.Connection open = connection) {
+                DataOutputStream out = open.getOutput();
+                DataInputStream in = open.getInput();
+                WireCodec.writeHeader(out, RequestCode.REQUEST_ADMITTED);
+                out.flush();
+                switch (request & ~RequestCode.COMPRESSED) {
                     case RequestCode.REQUEST_JOIN:
-                        handleJoin(in, out);
+                        handleJoin(in, out, (request & RequestCode.COMPRESSED) != 0);
                         break;
                     case RequestCode.REQUEST_LEAVE:
                         handleLeave(in, out);
                         break;
                     case RequestCode.SEND_MESSAGE:
-                        UUID memberId = UUID.fromString(in.readUTF());
                         SecretKey key = tree.getMemberKey(memberId);
                         if (key != null) {
-                            int length = in.readInt();
-                            byte[] received = new byte[length];
-                            in.readFully(received);
-                            received = Security.AESDecrypt(key, received);
-                            sendMessage(received);     
+                            byte[] received = WireCodec.readBytes(in);
+                            ByteBuffer buffer = ByteBuffer.wrap(Security.AESDecrypt(key, received));
+                            long seq = buffer.getLong();
+                            byte[] body = new byte[buffer.remaining()];
+                            buffer.get(body);
+                            relay.submit(new MessageRelay.Message(memberId, seq, body));
+                        }
+                        break;
+                    case RequestCode.SEND_STREAM:
+                        relayStream(memberId, in);
+                        break;
+                    case RequestCode.SEND_SUBTREE:
+                        key = tree.getMemberKey(memberId);
+                        if (key != null) {
+                            ByteBuffer buffer = ByteBuffer.wrap(Security.AESDecrypt(key, WireCodec.readBytes(in)));
+                            String nodeCode = WireCodec.getString(buffer);
+                            byte[] body = new byte[buffer.remaining()];
+                            buffer.get(body);
+                            sendToSubtree(memberId, nodeCode, body);
                         }
                         break;
                     default:
@@ -343,8 +1731,79 @@ public class GroupController {
                 }
             } catch (IOException ex) {
                 Logger.getLogger(GroupController.class.getName()).log(Level.SEVERE, null, ex);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    //read from the JMX threads -- the tree is only read under the controller lock
+    private class Metrics implements ControllerMetricsMBean {
+        @Override
+        public long getBytesSent() {
+            return bytesSent.get();
+        }
+        
+        @Override
+        public long getConnectionsOpened() {
+            return connectionsOpened.get();
+        }
+        
+        @Override
+        public long getFailedSends() {
+            return failedSends.get();
+        }
+        
+        @Override
+        public long getAesOperations() {
+            return Security.getAESOperations();
+        }
+        
+        @Override
+        public long getMembersSkipped() {
+            return totalSkipped.get();
+        }
+        
+        @Override
+        public int getMemberCount() {
+            return groupMembers.size();
+        }
+        
+        @Override
+        public int getTreeDepth() {
+            synchronized (GroupController.this) {
+                return tree.getDepth();
             }
         }
+        
+        @Override
+        public int getQueueDepth() {
+            int depth = 0;
+            for (Member member : groupMembers.values()) {
+                depth += member.outbound.size();
+            }
+            return depth;
+        }
+        
+        @Override
+        public int getPendingJoins() {
+            return pendingJoins.size();
+        }
+        
+        @Override
+        public int getQueuedRequests() {
+            return requests.getQueued();
+        }
+        
+        @Override
+        public long getRequestsRejected() {
+            return rejected.get();
+        }
+        
+        @Override
+        public long getKeyEpoch() {
+            return currentKey.epoch;
+        }
     }
     
     public class InterfaceData {
@@ -364,20 +1823,128 @@ public class GroupController {
             return memCount;
         }
         
+        private InterfaceData() {
+        }
+        
+        private InterfaceData(InterfaceData from) {
+            this.state = from.state;
+            this.memCount = from.memCount;
+            this.groupKey = from.groupKey;
+        }
+        
+        //publishes a copy, this one keeps changing under the controller lock
         private void update() {
-            if (ui != null) {
-                ui.updateState(this);
+            if (events.hasSubscribers()) {
+                events.publish(new InterfaceData(this));
             }
         }
     }
     
+    private static class UISubscriber implements StateBus.Subscriber<InterfaceData> {
+        final private ServerUI ui;
+        
+        private UISubscriber(ServerUI ui) {
+            this.ui = ui;
+        }
+        
+        @Override
+        public void onState(InterfaceData snapshot) {
+            ui.updateState(snapshot);
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof UISubscriber && ((UISubscriber)other).ui == ui;
+        }
+        
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(ui);
+        }
+    }
+    
+    //a member host -- its connection is kept between sends and only touched under the endpoint's lock
+    private static class Endpoint {
+        private final InetAddress address;
+        private final int port;
+        private Transport.Connection connection;
+        private int refs; //members using it, guarded by endpoints
+        
+        private Endpoint(InetAddress address, int port) {
+            this.address = address;
+            this.port = port;
+        }
+    }
+    
     private class Member {
+        private final UUID id;
         private final InetAddress address;
         private final int port;
+        private final Endpoint endpoint;
+        private final BlockingDeque<Frame> outbound; //unbounded, room bounds the messages in it
+        private final Semaphore room; //queueDepth messages
+        private final AtomicInteger keyBacklog; //key frames in outbound, at most MAX_KEY_BACKLOG
+        private final AtomicBoolean draining; //a MemberSender is scheduled or running
+        private final AtomicBoolean evicted;
+        private final AtomicBoolean released; //has let go of its endpoint
+        private final CircuitBreaker breaker;
+        private volatile boolean removed;
+        private boolean compression; //joined with COMPRESSED, set under the controller lock before it is added
+        private volatile TokenBucket bucket; //its message rate limit, null if there is none
+        private long epoch; //the epoch this member will be at once its queue drains, guarded by the controller lock
         
-        private Member(int port, InetAddress address) {
+        private Member(UUID id, int port, InetAddress address) {
+            this.id = id;
             this.port = port;
             this.address = address;
+            this.endpoint = acquire(address, port);
+            this.bucket = newBucket();
+            this.released = new AtomicBoolean();
+            this.outbound = new LinkedBlockingDeque<>();
+            this.room = new Semaphore(queueDepth);
+            this.keyBacklog = new AtomicInteger();
+            this.draining = new AtomicBoolean();
+            this.evicted = new AtomicBoolean();
+            this.breaker = new CircuitBreaker();
+        }
+        
+        //a join notice still waiting at the back of the queue is replaced, the newer one hashes it forward
+        //further -- false if the member is MAX_KEY_BACKLOG key frames behind
+        //(only called under the controller lock, or for a FORCE_REMOVE after which nothing else is queued)
+        private boolean offerKeyFrame(Frame frame) {
+            if (frame.requestCode == RequestCode.KEY_UPDATE_JOIN) {
+                Frame last = outbound.peekLast();
+                if (last != null && last.requestCode == RequestCode.KEY_UPDATE_JOIN 
+                        && outbound.removeLastOccurrence(last)) { //fails if a sender has just taken it
+                    outbound.addLast(frame);
+                    last.done();
+                    return true;
+                }
+            }
+            if (keyBacklog.incrementAndGet() > MAX_KEY_BACKLOG) {
+                keyBacklog.decrementAndGet();
+                return false;
+            }
+            outbound.addLast(frame);
+            return true;
+        }
+        
+        //the next frame to send, giving back what it took of the queue
+        private Frame poll() {
+            Frame frame = outbound.poll();
+            if (frame != null) {
+                if (frame.key) {
+                    keyBacklog.decrementAndGet();
+                } else {
+                    room.release();
+                }
+            }
+            return frame;
+        }
+        
+        private void clear() {
+            while (poll() != null) {
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,63 @@
+package ckcs.classes;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+//What a member's event publisher hands out, see GroupMember.getEvents() -- a message from the group (or from
+//a subtree the member is under), or a new group key epoch, in the order the member handled them
+public final class GroupEvent {
+
+    public enum Type { MESSAGE, KEY_UPDATE }
+
+    final private Type type;
+    final private UUID sender;     //MESSAGE only
+    final private byte[] body;     //MESSAGE only
+    final private String nodeCode; //MESSAGE sent to a subtree, null if it went to the whole group
+    final private long epoch;      //KEY_UPDATE only
+
+    private GroupEvent(Type type, UUID sender, byte[] body, String nodeCode, long epoch) {
+        this.type = type;
+        this.sender = sender;
+        this.body = body;
+        this.nodeCode = nodeCode;
+        this.epoch = epoch;
+    }
+
+    static GroupEvent message(UUID sender, byte[] body, String nodeCode) {
+        return new GroupEvent(Type.MESSAGE, sender, body, nodeCode, -1);
+    }
+
+    static GroupEvent keyUpdate(long epoch) {
+        return new GroupEvent(Type.KEY_UPDATE, null, null, null, epoch);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public UUID getSender() {
+        return sender;
+    }
+
+    //not copied, every subscriber gets the same array
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getText() {
+        return body == null ? null : new String(body, StandardCharsets.UTF_8);
+    }
+
+    public String getNodeCode() {
+        return nodeCode;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    @Override
+    public String toString() {
+        return type == Type.MESSAGE ? "MESSAGE from " + sender + ": " + getText() : "KEY_UPDATE to epoch " + epoch;
+    }
+}
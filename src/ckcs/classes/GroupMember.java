@@ -1,149 +1,328 @@
 package ckcs.classes;
 
+import ckcs.interfaces.Flow;
+import ckcs.interfaces.MemberMetricsMBean;
 import ckcs.interfaces.MemberUI;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SignedObject;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import ckcs.interfaces.RequestCode;
+import ckcs.interfaces.StreamListener;
+import ckcs.interfaces.Transport;
 import java.nio.ByteBuffer;
 import javax.xml.bind.DatatypeConverter;
 
 public class GroupMember {
     
     final private UUID memberID; //randomly assigned
-    final private SignedObject signedKey;
+    final private Security.SignedKey signedKey;
     final private PrivateKey privKey;
     final private InterfaceData uiData;
+    final private AtomicLong sendSeq; //lets the controller keep our messages in order
+    final private AtomicLong datagramSeq; //lets the other members drop a replayed datagram of ours
+    final private List<Inbound> heldMessages; //messages and stream chunks under a key epoch we haven't reached yet
+    final private AtomicLong streamSeq;
+    final private Map<String, Integer> streams; //sender:streamID -> next chunk index, only touched by the FrameHandler
+    private volatile StreamListener streamListener;
+    final private EventPublisher<GroupEvent> published; //messages and key updates, for Flow subscribers
+    final private Map<Integer, byte[]> dictionaries; //the controller's compression dictionaries by ID, FrameHandler only
+    final private Map<UUID, DataPlane.ReplayWindow> datagramWindows; //by sender ID, FrameHandler only
+    //---- metrics, exported over JMX as ckcs:type=GroupMember,name=<memberID> ----
+    final private AtomicLong bytesSent;
+    final private AtomicLong connectionsOpened;
+    final private AtomicLong failedSends;
+    final private LatencyHistogram joinHandshake;  //connect to the controller until we have the GK
+    final private LatencyHistogram rekey;          //applying one key update, join or leave
+    final private LatencyHistogram messageDecrypt; //decrypting and delivering one batch of messages
+    //(all three are the host's, shared with its other members)
     
-    private int port; //member's unqiue port to communicate with server
-    private boolean isConnected; 
-    private MemberUI ui;
-    private ServerSocket servSocket;
+    //most messages held back waiting for their key update, oldest are dropped past this
+    public static final int MAX_HELD_MESSAGES = 64;
+    
+    //frames read off the controller's connection wait here to be decrypted and handled, in order, on the
+    //RECEIVE_POOL -- the reader only reads, so a slow handler never leaves the controller's sends waiting on us
+    final private Queue<Inbound> inbound;
+    final private AtomicBoolean handling; //a FrameHandler is queued or running
+    private static final ExecutorService RECEIVE_POOL = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        final AtomicInteger count = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "member-receive-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    final private int port; //our host's port, the controller sends to it
+    private volatile boolean isConnected; 
+    final private StateBus<InterfaceData> events; //the UIs, and anything else watching the member's state
+    final private MemberHost host; //its listener reads the controller's frames for us
+    final private boolean ownsHost; //made just for us, closed when we leave
+    final private Transport transport;
     private ServerData servData;
         
     public GroupMember(UUID Id, int port) {
+        this(Id, port, new TcpTransport());
+    }
+    
+    //port is only a listener key on a LoopbackTransport, any int will do
+    public GroupMember(UUID Id, int port, Transport transport) {
+        this(Id, new MemberHost(port, transport), true);
+    }
+    
+    //shares host's listener, and the controller's connection to it, with the host's other members
+    public GroupMember(UUID Id, MemberHost host) {
+        this(Id, host, false);
+    }
+    
+    public GroupMember(MemberHost host, MemberUI ui) {
+        this(UUID.randomUUID(), host);
+        subscribe(ui);
+    }
+    
+    private GroupMember(UUID Id, MemberHost host, boolean ownsHost) {
+        this.host = host;
+        this.ownsHost = ownsHost;
+        this.transport = host.getTransport();
         KeyPair keyPair = Security.generateKeyPair();
         this.uiData = new InterfaceData();
+        this.events = new StateBus<>();
+        this.published = new EventPublisher<>();
         this.memberID = Id;
-        this.port = port;
+        this.port = host.getPort();
         this.privKey = keyPair.getPrivate();
         this.signedKey = Security.obtainTrustedSigned(keyPair.getPublic());
         this.servData = new ServerData();
+        this.sendSeq = new AtomicLong();
+        this.datagramSeq = new AtomicLong();
+        this.heldMessages = new ArrayList<>();
+        this.streamSeq = new AtomicLong();
+        this.streams = new HashMap<>();
+        this.dictionaries = new HashMap<>();
+        this.datagramWindows = new HashMap<>();
+        this.inbound = new ConcurrentLinkedQueue<>();
+        this.handling = new AtomicBoolean();
+        this.bytesSent = new AtomicLong();
+        this.connectionsOpened = new AtomicLong();
+        this.failedSends = new AtomicLong();
+        this.joinHandshake = host.getJoinHandshake();
+        this.rekey = host.getRekey();
+        this.messageDecrypt = host.getMessageDecrypt();
     }
     
     public GroupMember(final int port, MemberUI ui) {
         this(port);
-        this.ui = ui;
+        subscribe(ui);
     }
     
     public GroupMember(final int port) {
         this(UUID.randomUUID(), port);              
     }
     
+    public GroupMember(final int port, MemberUI ui, Transport transport) {
+        this(UUID.randomUUID(), port, transport);
+        subscribe(ui);
+    }
+    
     public UUID getId() {
         return memberID;
     }
+    
+    //ui sees the latest state, soon after each change and never on the thread making it
+    //a ui that is still busy with the last state skips the ones in between -- messages included
+    public void subscribe(MemberUI ui) {
+        subscribe(ui, false);
+    }
+    
+    //everyUpdate -- every state in order, so every message, however far behind the ui falls
+    public void subscribe(MemberUI ui, boolean everyUpdate) {
+        if (ui != null) {
+            events.subscribe(new UISubscriber(ui), everyUpdate);
+        }
+    }
+    
+    public void unsubscribe(MemberUI ui) {
+        events.unsubscribe(new UISubscriber(ui));
+    }
+    
+    //gets the group's streams, see sendStream -- streams already under way when it is set are skipped
+    public void setStreamListener(StreamListener listener) {
+        this.streamListener = listener;
+    }
+    
+    //every message and key update the member handles, in order, for as long as it is in the group --
+    //unlike the MemberUI snapshots nothing is overwritten, a subscriber gets what it requests and the rest waits
+    //in its buffer (subscribe with a capacity and overflow policy to choose what happens when that is full,
+    //by default the newest items are dropped -- BLOCK holds up every member in the process, not just this one)
+    public EventPublisher<GroupEvent> getEvents() {
+        return published;
+    }
+    
+    //a subscriber that sends each item to the group as a message, see sendMessage -- the next item is
+    //requested once the last one is sent, so a busy controller (see REQUEST_ADMITTED) slows the upstream down
+    //subscribe a new one for each upstream
+    public Flow.Subscriber<byte[]> newSender() {
+        return new Sender();
+    }
+    
+    //joined and not yet left
+    public boolean isConnected() {
+        return isConnected;
+    }
 
     public void requestJoin(final InetAddress address, final int portNumber) {
         servData.serverAddress = address;
         servData.serverPort = portNumber;
-        try (Socket socket = new Socket(address, portNumber);
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {   
-            out.writeInt(RequestCode.REQUEST_JOIN);
+        try {
+            //registered BEFORE joining -- the controller may send frames for us as soon as we are in the tree,
+            //they wait in our inbound queue until the handshake is done
+            host.register(this);
+        } catch (IOException ex) {
+            Logger.getLogger(GroupMember.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+        registerMetrics();
+        long start = System.nanoTime();
+        DataOutputStream out = null;
+        try (Transport.Connection connection = transport.connect(address, portNumber, 0)) {   
+            connectionsOpened.incrementAndGet();
+            DataInputStream in = connection.getInput();
+            out = connection.getOutput();
+            WireCodec.writeHeader(out, RequestCode.REQUEST_JOIN | RequestCode.COMPRESSED); //we can inflate messages
+            out.flush();
+            if (!admitted(in, "Join")) {
+                return;
+            }
             //AUTHENTICATION PHASE
-            out.writeObject(signedKey);
-            SignedObject signed = (SignedObject)in.readObject();
+            WireCodec.writeSignedKey(out, signedKey);
+            out.flush();
+            Security.SignedKey signed = WireCodec.readSignedKey(in);
             boolean isVerified = Security.verifyTrustedSigned(signed);
             if (!isVerified) {
                 uiData.state = "Group Controller cannot be trusted! Abort connection!";
                 uiData.update();
-                socket.close();
                 return;
             }
-            PublicKey otherPub = (PublicKey)signed.getObject();   
+            PublicKey otherPub = signed.getKey();   
             //END OF AUTHENTICATION PHASE
             //START OF JOIN/KEY EXCHANGE PHASE
-            String message = in.readUTF();
-            String parts[] = message.split("::");
-            this.servData.serverID = UUID.fromString(parts[0]);
-            int N1Received = Integer.parseInt(parts[1]);
+            this.servData.serverID = WireCodec.readUUID(in);
+            int N1Received = in.readInt();
                 
-            int N2 = (int)(1000 * Math.random() * Math.random());
-            message = "" + N1Received + "::" + memberID.toString() + "::" + N2 + "::" + 
-                    port + "::" + InetAddress.getLocalHost().getHostAddress();
-            out.writeUTF(message);
+            int N2 = Security.generateNonce();
+            out.writeInt(N1Received);
+            WireCodec.writeUUID(out, memberID);
+            out.writeInt(N2);
+            out.writeInt(port);
+            WireCodec.writeAddress(out, InetAddress.getLocalHost());
             out.flush();
             this.servData.key = Security.ECDHKeyAgreement(in, out, otherPub, privKey);
                 
-            byte[] received = readIntoBuffer(in);
-            message = new String(Security.AESDecrypt(servData.key, received), StandardCharsets.UTF_8);
-            parts = message.split("::");
-            int N2Received = Integer.parseInt(parts[1]);
-            UUID memID = UUID.fromString(parts[2]);
-            this.servData.rootCode = parts[3];
+            byte[] received = WireCodec.readBytes(in);
+            ByteBuffer buffer = ByteBuffer.wrap(Security.AESDecrypt(servData.key, received));
+            buffer.getInt(); //port
+            int N2Received = buffer.getInt();
+            UUID memID = WireCodec.getUUID(buffer);
+            this.servData.rootCode = WireCodec.getString(buffer);
+            InetSocketAddress group = null; //the controller's data plane, if it runs one
+            if (buffer.hasRemaining()) {
+                int groupPort = buffer.getInt();
+                group = new InetSocketAddress(WireCodec.getAddress(buffer), groupPort);
+            }
             if (N2Received != N2 || !memID.equals(memberID)) {
                 uiData.state = "Connection Failed -- Back Out";
                 uiData.update();
                 return;
             }
                 
-            received = readIntoBuffer(in);
-            message = new String(Security.AESDecrypt(servData.key, received), StandardCharsets.UTF_8);
+            received = WireCodec.readBytes(in);
+            String message = new String(Security.AESDecrypt(servData.key, received), StandardCharsets.UTF_8);
             this.servData.parentCode = message;
             uiData.parentCode = message;
                 
-            received = readIntoBuffer(in);
-            byte[] GK = Security.AESDecrypt(servData.key, received);
+            received = WireCodec.readBytes(in);
+            buffer = ByteBuffer.wrap(Security.AESDecrypt(servData.key, received));
+            long epoch = buffer.getLong();
+            byte[] secret = new byte[buffer.getInt()];
+            buffer.get(secret);
+            servData.stripeSecret = new SecretKeySpec(secret, "AES");
+            byte[] GK = new byte[buffer.remaining()];
+            buffer.get(GK);
             uiData.groupKey = GK;
-            servData.groupKey = new SecretKeySpec(GK, "AES");
+            servData.keys.put(epoch, new SecretKeySpec(GK, "AES"));
+            joinHandshake.recordSince(start);
             isConnected = true;
-            listenToKeyServer();
+            if (group != null) {
+                joinDataPlane(group);
+            }
+            keyUpdated();
+            startHandling();
             uiData.state = "Connection Successful! Added to group";
             uiData.update();
             //END OF JOIN/KEY EXCHANGE PHASE
-        } catch (IOException | ClassNotFoundException ex) {
+        } catch (IOException ex) {
+            failedSends.incrementAndGet();
             Logger.getLogger(GroupMember.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            if (out != null) {
+                bytesSent.addAndGet(out.size());
+            }
+            if (!isConnected) {
+                leaveHost();
+            }
         }
     }
 
     public void requestLeave() {
-        try (Socket socket = new Socket(servData.serverAddress, servData.serverPort); 
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {    
-            out.writeInt(RequestCode.REQUEST_LEAVE);
+        DataOutputStream out = null;
+        try (Transport.Connection connection = transport.connect(servData.serverAddress, servData.serverPort, 0)) {    
+            connectionsOpened.incrementAndGet();
+            DataInputStream in = connection.getInput();
+            out = connection.getOutput();
+            WireCodec.writeHeader(out, RequestCode.REQUEST_LEAVE);
             out.flush();
-            String message = in.readUTF();
-            String parts[] = message.split("::");
-            UUID servID = UUID.fromString(parts[0]);
+            if (!admitted(in, "Leave")) {
+                return;
+            }
+            UUID servID = WireCodec.readUUID(in);
+            int N1Received = in.readInt();
             if (!servID.equals(servData.serverID)) {
                 System.out.println("Connection Failed -- Backout");
                 return;
             }
-            int N1Received = Integer.parseInt(parts[1]);
-            int N2 = (int)(100 * Math.random() * Math.random());
-            message = "" + N1Received + "::" + memberID.toString() + "::" + N2;
-            out.writeUTF(message);
+            int N2 = Security.generateNonce();
+            out.writeInt(N1Received);
+            WireCodec.writeUUID(out, memberID);
+            out.writeInt(N2);
             out.flush();
             int N2Received = in.readInt();
             if (N2 == N2Received) {
@@ -151,77 +330,499 @@ public class GroupMember {
             }
             disconnect();
         } catch (IOException ex) {
+            failedSends.incrementAndGet();
             Logger.getLogger(GroupMember.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            if (out != null) {
+                bytesSent.addAndGet(out.size());
+            }
         }
     }
 
     public void sendMessage(String message) {
+        sendMessage(message.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    public void sendMessage(byte[] msg) {
+        if (publish(msg)) {
+            synchronized (uiData) {
+                uiData.state = "Message sent to group.";
+                uiData.update();
+            }
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(8 + msg.length);
+        buffer.putLong(sendSeq.getAndIncrement());
+        buffer.put(msg);
+        byte[] encrypted = Security.AESEncrypt(servData.key, buffer.array());
+        try (Transport.Connection connection = transport.connect(servData.serverAddress, servData.serverPort, 0)) {
+            connectionsOpened.incrementAndGet();
+            DataOutputStream out = connection.getOutput();
+            WireCodec.writeHeader(out, RequestCode.SEND_MESSAGE);
+            WireCodec.writeUUID(out, memberID);
+            out.flush();
+            if (!admitted(connection.getInput(), "Message")) {
+                return;
+            }
+            WireCodec.writeBytes(out, encrypted);
+            out.flush();
+            bytesSent.addAndGet(out.size());
+        } catch (IOException ex) {
+            failedSends.incrementAndGet();
+            Logger.getLogger(GroupMember.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        synchronized (uiData) { //we are on the caller's thread, the reader may be publishing a message right now
+            uiData.state = "Message sent to group.";
+            uiData.update();
+        }
+    }
+    
+    //a message for the members under the middle node nodeCode only -- any code on a member's path will do,
+    //e.g. our own parentCode for the members that share our parent, or a shorter prefix of it for a bigger subtree
+    //the controller encrypts it once under that node's middle key and sends it to nobody else
+    public void sendToSubtree(String nodeCode, String message) {
         byte[] msg = message.getBytes(StandardCharsets.UTF_8);
-        byte[] encrypted = Security.AESEncrypt(servData.key, msg);
-        try (Socket socket = new Socket(servData.serverAddress, servData.serverPort); 
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())) {
-            int length = encrypted.length;
-            out.writeInt(RequestCode.SEND_MESSAGE);
-            out.writeUTF(memberID.toString());
-            out.writeInt(length);
-            out.write(encrypted);
+        ByteBuffer buffer = ByteBuffer.allocate(WireCodec.stringSize(nodeCode) + msg.length);
+        WireCodec.putString(buffer, nodeCode);
+        buffer.put(msg);
+        byte[] encrypted = Security.AESEncrypt(servData.key, buffer.array());
+        try (Transport.Connection connection = transport.connect(servData.serverAddress, servData.serverPort, 0)) {
+            connectionsOpened.incrementAndGet();
+            DataOutputStream out = connection.getOutput();
+            WireCodec.writeHeader(out, RequestCode.SEND_SUBTREE);
+            WireCodec.writeUUID(out, memberID);
+            out.flush();
+            if (!admitted(connection.getInput(), "Message")) {
+                return;
+            }
+            WireCodec.writeBytes(out, encrypted);
+            out.flush();
+            bytesSent.addAndGet(out.size());
         } catch (IOException ex) {
+            failedSends.incrementAndGet();
             Logger.getLogger(GroupMember.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+        synchronized (uiData) {
+            uiData.state = "Message sent to the members under " + nodeCode + ".";
+            uiData.update();
         }
-        uiData.state = "Message sent to group.";
-        uiData.update();
     }
     
-    private void listenToKeyServer() {
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        executor.execute(new fromServer());
+    //sends everything read from source to the group as one stream, CHUNK_SIZE at a time -- only a chunk or two
+    //of it is in memory at once, and the members get each chunk as soon as the controller does
+    //if source fails part way the connection is dropped, and the members are told the stream broke off
+    public void sendStream(InputStream source) {
+        long streamID = streamSeq.getAndIncrement();
+        int index = 0;
+        DataOutputStream out = null;
+        try (Transport.Connection connection = transport.connect(servData.serverAddress, servData.serverPort, 0)) {
+            connectionsOpened.incrementAndGet();
+            out = connection.getOutput();
+            WireCodec.writeHeader(out, RequestCode.SEND_STREAM);
+            WireCodec.writeUUID(out, memberID);
+            out.flush();
+            if (!admitted(connection.getInput(), "Stream")) {
+                return;
+            }
+            byte[] data = readChunk(source);
+            byte flags;
+            do {
+                byte[] next = null;
+                flags = 0;
+                //a full chunk may be the last one, only the next read tells
+                if (data.length < StreamChunk.CHUNK_SIZE || (next = readChunk(source)).length == 0) {
+                    flags = StreamChunk.LAST;
+                }
+                WireCodec.writeBytes(out, new StreamChunk(streamID, index++, flags, data).seal(servData.key));
+                out.flush();
+                data = next;
+            } while (flags == 0);
+        } catch (IOException ex) {
+            failedSends.incrementAndGet();
+            Logger.getLogger(GroupMember.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            if (out != null) {
+                bytesSent.addAndGet(out.size());
+            }
+        }
+        synchronized (uiData) {
+            uiData.state = "Stream of " + index + " chunks sent to group.";
+            uiData.update();
+        }
     }
     
-    private void handleJoinUpdate() {
-        servData.groupKey = Security.updateKey(servData.groupKey);
-        uiData.groupKey = servData.groupKey.getEncoded();
-        uiData.state = "A member has joined the group. Group Key has been updated via one-way hash.";
+    //the controller's first reply to every request -- it comes once the request is out of its lane's queue,
+    //so a busy controller slows its members down instead of piling up their requests
+    private boolean admitted(DataInputStream in, String what) throws IOException {
+        int code = WireCodec.readHeader(in);
+        if (code == RequestCode.REQUEST_ADMITTED) {
+            return true;
+        }
+        failedSends.incrementAndGet();
+        synchronized (uiData) {
+            uiData.state = what + " rejected by the controller: "
+                    + (code == RequestCode.REJECT_RATE_LIMITED ? "rate limited" : "overloaded");
+            uiData.update();
+        }
+        return false;
+    }
+    
+    //straight to the group on the data plane, false if the message has to go through the controller
+    private boolean publish(byte[] msg) {
+        DataPlane dataPlane = servData.dataPlane;
+        if (dataPlane == null || msg.length > DataPlane.MAX_MESSAGE) {
+            return false;
+        }
+        long epoch = servData.keys.latestEpoch();
+        SecretKey groupKey = servData.keys.get(epoch);
+        if (groupKey == null) {
+            return false;
+        }
+        try {
+            byte[] datagram = DataPlane.seal(epoch, groupKey, memberID, datagramSeq.getAndIncrement(), msg);
+            dataPlane.publish(datagram);
+            bytesSent.addAndGet(datagram.length);
+            return true;
+        } catch (IOException ex) {
+            failedSends.incrementAndGet();
+            Logger.getLogger(GroupMember.class.getName()).log(Level.WARNING, 
+                    "Data plane send failed, relaying through the controller: {0}", ex.toString());
+            return false;
+        }
+    }
+    
+    private void joinDataPlane(InetSocketAddress group) {
+        try {
+            servData.dataPlane = host.joinDataPlane(group, this);
+        } catch (IOException ex) {
+            //our messages still get through the controller, but we won't see the other members'
+            Logger.getLogger(GroupMember.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    //fills a whole chunk unless the source ends first
+    private static byte[] readChunk(InputStream source) throws IOException {
+        byte[] chunk = new byte[StreamChunk.CHUNK_SIZE];
+        int filled = 0;
+        int read;
+        while (filled < chunk.length && (read = source.read(chunk, filled, chunk.length - filled)) != -1) {
+            filled += read;
+        }
+        return filled == chunk.length ? chunk : Arrays.copyOf(chunk, filled);
+    }
+    
+    //called by our host's reader, which only reads -- the frames are handled by the FrameHandler
+    void receive(int code, byte[] body) {
+        inbound.add(new Inbound(code, body));
+        if (isConnected) {
+            startHandling();
+        }
+    }
+    
+    private void startHandling() {
+        if (!inbound.isEmpty() && handling.compareAndSet(false, true)) {
+            RECEIVE_POOL.execute(new FrameHandler());
+        }
+    }
+    
+    //one notification can cover several joins -- hash forward once per epoch we are behind
+    private void handleJoinUpdate(byte[] update) throws IOException {
+        long target = ByteBuffer.wrap(update).getLong();
+        long epoch = servData.keys.latestEpoch();
+        long steps = target - epoch;
+        if (steps <= 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        SecretKey groupKey = servData.keys.latest();
+        while (epoch < target) {
+            groupKey = Security.updateKey(groupKey);
+            servData.keys.put(++epoch, groupKey);
+        }
+        rekey.recordSince(start);
+        uiData.groupKey = groupKey.getEncoded();
+        if (steps == 1) {
+            uiData.state = "A member has joined the group. Group Key has been updated via one-way hash.";
+        } else {
+            uiData.state = "Members have joined the group. Group Key has been updated via " + steps + " one-way hashes.";
+        }
         uiData.update();
+        keyUpdated();
+        readHeldMessages();
     }
    
     //receive a byte[] containing the new encrypted GK
     //levels -- how many times it has been encrypted (encryption levels)
-    private void handleLeaveUpdate(byte[] encrypted) {
+    private void handleLeaveUpdate(byte[] encrypted) throws IOException {
+        long start = System.nanoTime();
         ByteBuffer buffer = ByteBuffer.wrap(encrypted);
-        int strLen = buffer.getInt();
-        byte[] str = new byte[strLen];
-        buffer.get(str, 0, strLen);
+        long epoch = buffer.getLong();
+        //sent again after a failed send, or from a primary our controller's standby has taken over from
+        if (epoch <= servData.keys.latestEpoch()) {
+            Logger.getLogger(GroupMember.class.getName()).log(Level.WARNING, 
+                    "Key update for epoch {0} is behind ours, ignored", epoch);
+            return;
+        }
+        //our parentCode, as a delta -- -1 if we weren't moved, else how much of the old code to keep + the new suffix
+        int keep = buffer.getShort();
+        String parent = servData.parentCode;
+        if (keep >= 0) {
+            byte[] suffix = new byte[buffer.getShort()];
+            buffer.get(suffix);
+            parent = parent.substring(0, keep) + new String(suffix, StandardCharsets.UTF_8);
+        }
         int level = buffer.getInt();
         int GKLen = buffer.getInt();
         byte[] encrypGK = new byte[GKLen];
         buffer.get(encrypGK, 0, GKLen);
         
-        String parent = new String(str, StandardCharsets.UTF_8);
         servData.parentCode = parent;
         
+        //the middle keys were built from the GK of the epoch before this rekey
+        SecretKey previous = servData.keys.get(epoch - 1);
+        if (previous == null) {
+            Logger.getLogger(GroupMember.class.getName()).log(Level.WARNING, 
+                    "No group key for epoch {0}, using latest", epoch - 1);
+            previous = servData.keys.latest();
+        }
         List<String> path = pathToRoot(servData.parentCode);
-        if (level > path.size() || path.isEmpty()) {
+        if (level == 0) { //the leave was in another stripe (or on another controller node), GK is under our stripe's key
+            SecretKey rootKey = Security.stripeKeyCalculation(previous, servData.stripeSecret);
+            encrypted = Security.AESDecrypt(rootKey, encrypGK);
+        } else if (level > path.size() || path.isEmpty()) {
             encrypted = Security.AESDecrypt(servData.key, encrypGK);
         } else {
             Iterator<String> it = path.listIterator(path.size() - level);
             String nodeCode = it.next();
-            SecretKey middleKey = Security.middleKeyCalculation(servData.groupKey, nodeCode);
+            SecretKey middleKey = Security.middleKeyCalculation(previous, nodeCode);
             encrypted = Security.AESDecrypt(middleKey, encrypGK);    
         }
-        servData.groupKey = new SecretKeySpec(encrypted, "AES");
+        SecretKey groupKey = new SecretKeySpec(encrypted, "AES");
+        servData.keys.put(epoch, groupKey);
+        servData.stripeSecret = Security.nextStripeSecret(servData.stripeSecret, groupKey); //as the controller does
+        rekey.recordSince(start);
         uiData.groupKey = encrypted;
         uiData.parentCode = parent;
         uiData.state = "A member has left the group. Group Key and ParentCode have been updated via Middle Node Key.";
         uiData.update();
+        keyUpdated();
+        readHeldMessages();
     }
     
-    private void readMessage(byte[] received) {
-        uiData.encryptedMessage = received;
-        byte[] decrypted = Security.AESDecrypt(servData.groupKey, received);
-        uiData.message = new String(decrypted, StandardCharsets.UTF_8);
-        System.out.println(uiData.message);
-        uiData.state = "Message received";
+    //the standby controller took over from the one we joined -- a fresh GK and stripe secret under OUR key
+    //and where to reach the controller now, we keep our memberID and key, no rejoin
+    private void handleFailover(byte[] encrypted) throws IOException {
+        byte[] decrypted = Security.AESDecrypt(servData.key, encrypted);
+        if (decrypted == null) {
+            Logger.getLogger(GroupMember.class.getName()).log(Level.WARNING, "Failover notice not under our key, ignored");
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(decrypted);
+        long epoch = buffer.getLong();
+        if (epoch <= servData.keys.latestEpoch()) { //sent again after a failed send, we already have it
+            return;
+        }
+        int serverPort = buffer.getInt();
+        InetAddress serverAddress = WireCodec.getAddress(buffer);
+        byte[] secret = new byte[buffer.getInt()];
+        buffer.get(secret);
+        byte[] GK = new byte[buffer.remaining()];
+        buffer.get(GK);
+        servData.stripeSecret = new SecretKeySpec(secret, "AES");
+        servData.serverAddress = serverAddress;
+        servData.serverPort = serverPort;
+        servData.keys.put(epoch, new SecretKeySpec(GK, "AES"));
+        uiData.groupKey = GK;
+        uiData.state = "Group Controller failed over to " + serverAddress.getHostAddress() + ":" + serverPort 
+                + ". Group Key has been updated.";
         uiData.update();
+        keyUpdated();
+        readHeldMessages();
+    }
+    
+    //the controller relays messages in batches, one GK decryption covers all of them
+    //each batch names the key epoch it was encrypted under -- it may be one we already moved past (still in
+    //the key ring) or one whose key update hasn't reached us yet (held until it does)
+    //compressed -- the batch was deflated before it was encrypted
+    private void readMessage(byte[] received, boolean compressed) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(received);
+        long epoch = buffer.getLong();
+        SecretKey groupKey = servData.keys.get(epoch);
+        if (groupKey == null) {
+            hold(new Inbound(compressed ? RequestCode.RECEIVE_MESSAGE | RequestCode.COMPRESSED 
+                    : RequestCode.RECEIVE_MESSAGE, received), epoch);
+            return;
+        }
+        long start = System.nanoTime();
+        byte[] encrypted = new byte[buffer.remaining()];
+        buffer.get(encrypted);
+        uiData.encryptedMessage = encrypted;
+        byte[] decrypted = Security.AESDecrypt(groupKey, encrypted);
+        if (compressed) {
+            decrypted = Compression.decompress(decrypted, dictionaries);
+        }
+        for (MessageRelay.Message message : MessageRelay.decodeBatch(decrypted)) {
+            deliver(message, null);
+        }
+        messageDecrypt.recordSince(start);
+    }
+    
+    //a message another member multicast on the data plane
+    private void readDatagram(byte[] received) {
+        ByteBuffer buffer = ByteBuffer.wrap(received);
+        long epoch = buffer.getLong();
+        SecretKey groupKey = servData.keys.get(epoch);
+        if (groupKey == null) {
+            hold(new Inbound(RequestCode.GROUP_DATAGRAM, received), epoch);
+            return;
+        }
+        long start = System.nanoTime();
+        MessageRelay.Message message = DataPlane.open(groupKey, buffer);
+        if (message == null) {
+            Logger.getLogger(GroupMember.class.getName()).log(Level.WARNING, 
+                    "Data plane message for key epoch {0} failed authentication, dropped", epoch);
+            return;
+        }
+        DataPlane.ReplayWindow window = datagramWindows.get(message.getSender());
+        if (window == null) {
+            window = new DataPlane.ReplayWindow();
+            datagramWindows.put(message.getSender(), window);
+        }
+        if (!window.accept(message.getSeq())) {
+            Logger.getLogger(GroupMember.class.getName()).log(Level.FINE, 
+                    "Data plane message {0} from {1} replayed or too late, dropped", 
+                    new Object[] {message.getSeq(), message.getSender()});
+            return;
+        }
+        deliver(message, null);
+        messageDecrypt.recordSince(start);
+    }
+    
+    //a message for the members under one middle node on our path -- under that node's middle key, which we
+    //derive from the GK of the frame's epoch as for a leave rekey
+    private void readSubtreeMessage(byte[] received) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(received);
+        long epoch = buffer.getLong();
+        SecretKey groupKey = servData.keys.get(epoch);
+        if (groupKey == null) {
+            hold(new Inbound(RequestCode.RECEIVE_SUBTREE, received), epoch);
+            return;
+        }
+        String nodeCode = WireCodec.getString(buffer);
+        //joins never tell us our code, they only push us DOWN (our code grows by a digit) -- so a node below
+        //the code we have is on our path too, as far as we can tell
+        String parentCode = servData.parentCode;
+        if (!nodeCode.startsWith(servData.rootCode) 
+                || !(parentCode.startsWith(nodeCode) || nodeCode.startsWith(parentCode))) {
+            Logger.getLogger(GroupMember.class.getName()).log(Level.WARNING, 
+                    "Message for the members under {0}, not on our path, dropped", nodeCode);
+            return;
+        }
+        long start = System.nanoTime();
+        byte[] encrypted = new byte[buffer.remaining()];
+        buffer.get(encrypted);
+        byte[] decrypted = Security.AESDecrypt(Security.middleKeyCalculation(groupKey, nodeCode), encrypted);
+        if (decrypted == null || decrypted.length < 16) {
+            Logger.getLogger(GroupMember.class.getName()).log(Level.WARNING, 
+                    "Message for the members under {0} did not decrypt, dropped", nodeCode);
+            return;
+        }
+        ByteBuffer plain = ByteBuffer.wrap(decrypted);
+        UUID sender = WireCodec.getUUID(plain);
+        byte[] message = new byte[plain.remaining()];
+        plain.get(message);
+        deliver(new MessageRelay.Message(sender, -1, message), nodeCode);
+        messageDecrypt.recordSince(start);
+    }
+    
+    //nodeCode -- the subtree the message was sent to, null for the whole group
+    private void deliver(MessageRelay.Message message, String nodeCode) {
+        if (published.hasSubscribers()) {
+            published.publish(GroupEvent.message(message.getSender(), message.getBody(), nodeCode));
+        }
+        synchronized (uiData) {
+            uiData.message = new String(message.getBody(), StandardCharsets.UTF_8);
+            System.out.println(uiData.message);
+            uiData.state = "Message received";
+            uiData.update();
+        }
+    }
+    
+    //one chunk of someone's stream, handed to the StreamListener as it comes
+    //a chunk missing from the middle breaks the stream for us, the rest of it is skipped
+    private void readStreamChunk(byte[] received) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(received);
+        long epoch = buffer.getLong();
+        SecretKey groupKey = servData.keys.get(epoch);
+        if (groupKey == null) {
+            hold(new Inbound(RequestCode.RECEIVE_STREAM, received), epoch);
+            return;
+        }
+        StreamListener listener = streamListener;
+        if (listener == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        UUID sender = WireCodec.getUUID(buffer);
+        byte[] sealed = new byte[buffer.remaining()];
+        buffer.get(sealed);
+        StreamChunk chunk = StreamChunk.open(groupKey, sealed);
+        String stream = sender + ":" + chunk.getStreamID();
+        Integer next = streams.get(stream);
+        if (next == null) {
+            if (chunk.getIndex() != 0) { //began before we joined, or before there was a listener
+                return;
+            }
+            next = 0;
+        }
+        if (chunk.isLast()) {
+            streams.remove(stream);
+        } else {
+            streams.put(stream, next < 0 || chunk.getIndex() != next ? -1 : next + 1);
+        }
+        if (next < 0) { //already broken
+            return;
+        }
+        if (chunk.isAborted() || chunk.getIndex() != next) {
+            listener.onBroken(sender, chunk.getStreamID());
+            return;
+        }
+        listener.onChunk(sender, chunk.getStreamID(), chunk.getData(), chunk.isLast());
+        messageDecrypt.recordSince(start);
+    }
+    
+    //a message or chunk from a key epoch we are not at yet waits for its key update
+    private void hold(Inbound frame, long epoch) {
+        if (epoch > servData.keys.latestEpoch()) {
+            if (heldMessages.size() == MAX_HELD_MESSAGES) {
+                heldMessages.remove(0);
+            }
+            heldMessages.add(frame);
+        } else {
+            Logger.getLogger(GroupMember.class.getName()).log(Level.WARNING, 
+                    "Message for key epoch {0} is too old to decrypt, dropped", epoch);
+        }
+    }
+    
+    //retries messages that arrived ahead of their key update
+    private void readHeldMessages() throws IOException {
+        if (heldMessages.isEmpty()) {
+            return;
+        }
+        List<Inbound> held = new ArrayList<>(heldMessages);
+        heldMessages.clear();
+        for (Inbound frame : held) {
+            if (frame.code == RequestCode.RECEIVE_STREAM) {
+                readStreamChunk(frame.body);
+            } else if (frame.code == RequestCode.GROUP_DATAGRAM) {
+                readDatagram(frame.body);
+            } else if (frame.code == RequestCode.RECEIVE_SUBTREE) {
+                readSubtreeMessage(frame.body);
+            } else {
+                readMessage(frame.body, (frame.code & RequestCode.COMPRESSED) != 0);
+            }
+        }
     }
     
     private String removeDigit(String parentCode) {
@@ -237,9 +838,36 @@ public class GroupMember {
         return path;
     }
     
+    //registered from the join to the leave (or the failed join) -- the MBean server would otherwise hold
+    //every member that ever ran in this JVM, the histograms are registered once for the host
+    private void registerMetrics() {
+        MetricsExporter.register("GroupMember", memberID.toString(), new Metrics(), 
+                MemberMetricsMBean.class, Collections.<String, LatencyHistogram>emptyMap());
+    }
+    
+    private void leaveHost() {
+        MetricsExporter.unregister("GroupMember", memberID.toString());
+        host.unregister(this);
+        if (servData.dataPlane != null) {
+            host.leaveDataPlane(servData.dataPlane, this);
+            servData.dataPlane = null;
+        }
+        inbound.clear();
+        if (ownsHost) {
+            host.close();
+        }
+    }
+    
+    private void keyUpdated() {
+        if (published.hasSubscribers()) {
+            published.publish(GroupEvent.keyUpdate(servData.keys.latestEpoch()));
+        }
+    }
+    
     private void disconnect() throws IOException {
         isConnected = false;
-        servSocket.close();
+        published.close();
+        leaveHost();
         servData = null;
         uiData.groupKey = "".getBytes();
         uiData.parentCode = "";
@@ -247,57 +875,154 @@ public class GroupMember {
         uiData.update();
     }
     
-    private byte[] readIntoBuffer(ObjectInputStream in) throws IOException {
-        int length = in.readInt();
-        byte[] buffer = new byte[length];
-        in.readFully(buffer);
-        return buffer;
-    }
-    
     @Override
     public String toString() {
         return "ID: " + memberID.toString() + "  ParentCode: " + servData.parentCode + "\n" + "GK - " 
-                + DatatypeConverter.printHexBinary(servData.groupKey.getEncoded());
+                + DatatypeConverter.printHexBinary(servData.keys.latest().getEncoded());
     }
 
-    private class fromServer implements Runnable {
-        @Override 
+    //works through the inbound frames, one handler per member at a time
+    private class FrameHandler implements Runnable {
+        @Override
         public void run() {
-            try {
-                servSocket = new ServerSocket();
-                servSocket.setReuseAddress(true);
-                servSocket.bind(new InetSocketAddress(port));
-                while (isConnected) {
-                    Socket socket = servSocket.accept();
-                    DataInputStream in = new DataInputStream(socket.getInputStream());
-                    int code = in.readInt();
-                    switch (code) {
-                        case RequestCode.KEY_UPDATE_JOIN:
-                            handleJoinUpdate();
-                            break;
-                        case RequestCode.KEY_UPDATE_LEAVE:
-                            byte[] encrypted = new byte[in.readInt()];
-                            in.readFully(encrypted);
-                            handleLeaveUpdate(encrypted);
-                            break;
-                        case RequestCode.RECEIVE_MESSAGE:
-                            byte[] received = new byte[in.readInt()];
-                            in.readFully(received);
-                            readMessage(received);
-                            break;
-                        case RequestCode.FORCE_REMOVE:
-                            disconnect();
-                            break;
-                    }   
-                }
-            } catch (IOException ex) {
-                if (isConnected) {
-                    Logger.getLogger(fromServer.class.getName()).log(Level.SEVERE, null, ex);
+            do {
+                Inbound frame;
+                while ((frame = inbound.poll()) != null) {
+                    if (!isConnected) { //left, or removed by an earlier frame
+                        inbound.clear();
+                        break;
+                    }
+                    try {
+                        handle(frame);
+                    } catch (IOException | RuntimeException ex) {
+                        Logger.getLogger(GroupMember.class.getName()).log(Level.SEVERE, null, ex);
+                    }
                 }
+                handling.set(false);
+                //a frame added after our last poll but before the reset found us still handling
+            } while (!inbound.isEmpty() && handling.compareAndSet(false, true));
+        }
+        
+        private void handle(Inbound frame) throws IOException {
+            switch (frame.code) {
+                case RequestCode.KEY_UPDATE_JOIN:
+                    handleJoinUpdate(frame.body);
+                    break;
+                case RequestCode.KEY_UPDATE_LEAVE:
+                    handleLeaveUpdate(frame.body);
+                    break;
+                case RequestCode.RECEIVE_MESSAGE:
+                    readMessage(frame.body, false);
+                    break;
+                case RequestCode.RECEIVE_MESSAGE | RequestCode.COMPRESSED:
+                    readMessage(frame.body, true);
+                    break;
+                case RequestCode.COMPRESSION_DICTIONARY:
+                    byte[] dictionary = Security.AESDecrypt(servData.key, frame.body);
+                    dictionaries.put(Compression.dictionaryID(dictionary), dictionary);
+                    break;
+                case RequestCode.RECEIVE_STREAM:
+                    readStreamChunk(frame.body);
+                    break;
+                case RequestCode.GROUP_DATAGRAM:
+                    readDatagram(frame.body);
+                    break;
+                case RequestCode.RECEIVE_SUBTREE:
+                    readSubtreeMessage(frame.body);
+                    break;
+                case RequestCode.FAILOVER:
+                    handleFailover(frame.body);
+                    break;
+                case RequestCode.FORCE_REMOVE:
+                    disconnect();
+                    break;
             }
         }
     }
     
+    private class Sender implements Flow.Subscriber<byte[]> {
+        private Flow.Subscription subscription;
+        
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            if (this.subscription != null) { //already subscribed to something
+                subscription.cancel();
+                return;
+            }
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+        
+        @Override
+        public void onNext(byte[] item) {
+            if (!isConnected) {
+                subscription.cancel();
+                return;
+            }
+            sendMessage(item);
+            subscription.request(1);
+        }
+        
+        @Override
+        public void onError(Throwable throwable) {
+            Logger.getLogger(GroupMember.class.getName()).log(Level.WARNING, "Message upstream failed: {0}", 
+                    throwable.toString());
+        }
+        
+        @Override
+        public void onComplete() {
+        }
+    }
+    
+    private static class Inbound {
+        final int code;
+        final byte[] body; //null for FORCE_REMOVE
+        
+        private Inbound(int code, byte[] body) {
+            this.code = code;
+            this.body = body;
+        }
+    }
+    
+    //read from the JMX threads
+    private class Metrics implements MemberMetricsMBean {
+        @Override
+        public long getBytesSent() {
+            return bytesSent.get();
+        }
+        
+        @Override
+        public long getConnectionsOpened() {
+            return connectionsOpened.get();
+        }
+        
+        @Override
+        public long getFailedSends() {
+            return failedSends.get();
+        }
+        
+        @Override
+        public long getAesOperations() {
+            return Security.getAESOperations();
+        }
+        
+        @Override
+        public boolean isConnected() {
+            return isConnected;
+        }
+        
+        @Override
+        public long getKeyEpoch() {
+            ServerData data = servData; //null once we have left
+            return data == null ? -1 : data.keys.latestEpoch();
+        }
+        
+        @Override
+        public int getHeldMessages() {
+            return heldMessages.size();
+        }
+    }
+    
     public class InterfaceData {
         private String message;
         private byte[] encryptedMessage;
@@ -305,9 +1030,21 @@ public class GroupMember {
         private String state;
         private byte[] groupKey;
         
+        private InterfaceData() {
+        }
+        
+        private InterfaceData(InterfaceData from) {
+            this.message = from.message;
+            this.encryptedMessage = from.encryptedMessage;
+            this.parentCode = from.parentCode;
+            this.state = from.state;
+            this.groupKey = from.groupKey;
+        }
+        
+        //publishes a copy, this one keeps changing as frames come in
         private void update() {
-            if (ui != null) {
-                ui.updateState(this);
+            if (events.hasSubscribers()) {
+                events.publish(new InterfaceData(this));
             }
         }
         
@@ -332,13 +1069,38 @@ public class GroupMember {
         }
     }
     
+    private static class UISubscriber implements StateBus.Subscriber<InterfaceData> {
+        final private MemberUI ui;
+        
+        private UISubscriber(MemberUI ui) {
+            this.ui = ui;
+        }
+        
+        @Override
+        public void onState(InterfaceData snapshot) {
+            ui.updateState(snapshot);
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof UISubscriber && ((UISubscriber)other).ui == ui;
+        }
+        
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(ui);
+        }
+    }
+    
     private class ServerData {
         private UUID serverID;
         private InetAddress serverAddress;
         private int serverPort;
         private SecretKey key; //Group Controller key exchange 
-        private SecretKey groupKey;
+        private final KeyRing keys = new KeyRing(); //recent GKs by key epoch, bumped with every GK change
         private String parentCode; //Should be obtained from GroupController via LogicalTree
         private String rootCode; //rootCode of logical tree
+        private SecretKey stripeSecret; //mixed into our stripe's root key, moved on with every leave rekey
+        private volatile DataPlane dataPlane; //null when our messages go through the controller
     }  
 }
\ No newline at end of file
@@ -0,0 +1,60 @@
+package ckcs.classes;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.SecretKey;
+
+//A member's last few group keys, by key epoch
+//a payload encrypted under a GK that was just replaced (a message racing a rekey) can still be decrypted,
+//so the controller does not have to serialize its data traffic with rekeys
+public class KeyRing {
+
+    public static final int DEFAULT_CAPACITY = 8;
+
+    final private Map<Long, SecretKey> keys;
+    private long latestEpoch = -1;
+
+    public KeyRing() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public KeyRing(int capacity) {
+        this.keys = new Bounded(capacity);
+    }
+
+    public synchronized void put(long epoch, SecretKey key) {
+        keys.put(epoch, key);
+        if (epoch > latestEpoch) {
+            latestEpoch = epoch;
+        }
+    }
+
+    //null if the epoch is too old to still be held, or has not been reached yet
+    public synchronized SecretKey get(long epoch) {
+        return keys.get(epoch);
+    }
+
+    public synchronized SecretKey latest() {
+        return keys.get(latestEpoch);
+    }
+
+    public synchronized long latestEpoch() {
+        return latestEpoch;
+    }
+
+    //oldest epoch out first once capacity keys are held
+    private static class Bounded extends LinkedHashMap<Long, SecretKey> {
+        private static final long serialVersionUID = 1L;
+        final private int capacity;
+
+        private Bounded(int capacity) {
+            super(capacity + 1, 1f);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, SecretKey> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package ckcs.classes;
+
+import ckcs.interfaces.LatencyHistogramMBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//HDR-style log-linear histogram of nanosecond latencies, lock free to record into
+//every power of two is split into 2^SUB_BITS linear buckets, so a percentile is off by at most 1/2^SUB_BITS
+//of its value, from nanoseconds up to centuries, in a fixed 960 buckets
+public class LatencyHistogram implements LatencyHistogramMBean {
+    
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+    
+    final private AtomicLongArray counts;
+    final private AtomicLong count;
+    final private AtomicLong sum;
+    final private AtomicLong max;
+    
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.count = new AtomicLong();
+        this.sum = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+    
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(index(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+        }
+    }
+    
+    //for the usual long start = System.nanoTime(); ... recordSince(start);
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+    
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+    
+    //middle of the range of values that land in bucket i
+    private static long valueAt(int i) {
+        if (i < SUB_BUCKETS) {
+            return i;
+        }
+        int shift = i / SUB_BUCKETS - 1;
+        long low = (long)(SUB_BUCKETS + i % SUB_BUCKETS) << shift;
+        return low + ((1L << shift) >>> 1);
+    }
+    
+    //in nanoseconds, percentile from 0 to 100
+    public long percentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long)Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(valueAt(i), max.get());
+            }
+        }
+        return max.get();
+    }
+    
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+    
+    @Override
+    public double getMeanMicros() {
+        long total = count.get();
+        return total == 0 ? 0 : sum.get() / (double)total / 1000;
+    }
+    
+    @Override
+    public long getMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(max.get());
+    }
+    
+    @Override
+    public long getP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(percentile(50));
+    }
+    
+    @Override
+    public long getP90Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(percentile(90));
+    }
+    
+    @Override
+    public long getP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(percentile(99));
+    }
+    
+    @Override
+    public long getP999Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(percentile(99.9));
+    }
+    
+    //not atomic with concurrent records, a sample or two may land on either side of the reset
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
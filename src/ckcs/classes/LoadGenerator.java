@@ -0,0 +1,352 @@
+package ckcs.classes;
+
+import ckcs.interfaces.MemberUI;
+import ckcs.interfaces.Transport;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Drives a GroupController with many simulated members, all in this JVM, and reports per operation
+//throughput and latency percentiles as JSON lines, one object per line, so runs can be diffed and plotted:
+//  {"type":"run", <the options>}
+//  {"type":"op","op":"join","count":..,"errors":..,"perSecond":..,"meanMicros":..,"p50Micros":..,...}
+//options are name=value arguments, all optional:
+//  members=1000        joined before the timed phase starts ("populate" in the output)
+//  joinRate=10         joins per second during the timed phase, each by a fresh member
+//  leaveRate=10        leaves per second, by a random joined member
+//  messageRate=100     messages per second, from a random joined member
+//  seconds=30          length of the timed phase
+//  threads=64          operations in flight at once
+//  controller=<host:port>  drive that controller, by default one is started in this JVM on controllerPort
+//  controllerPort=15000
+//  basePort=20000      members listen on basePort, basePort + 1, ...
+//  membersPerHost=1    members sharing one MemberHost -- one port, and one controller connection, per host
+//  transport=tcp       or loopback: members and the in-process controller talk through a LoopbackTransport,
+//                      no sockets -- what is left is the protocol, the crypto and the tree
+//  dataPlane=<group:port>  the in-process controller has members multicast their messages to group:port
+//                      themselves (e.g. 239.1.1.1:17000) instead of relaying them
+//  out=<file>          append the JSON lines to file instead of printing them (the members print too, 
+//                      on stdout the results are the lines starting with {)
+//the timed phase is open loop: operations are scheduled at a fixed rate and their latency runs from when they
+//were DUE, not when a thread got to them -- a stalled controller shows up as latency, not as a lower rate
+//"message" is send to delivery, once per receiving member
+public class LoadGenerator {
+    
+    final private Map<String, String> options;
+    final private InetAddress address;
+    final private int controllerPort;
+    final private Transport transport;
+    final private ExecutorService pool;
+    final private Map<String, Operation> operations;
+    final private List<GroupMember> joined; //guarded by itself
+    final private ConcurrentLinkedQueue<GroupMember> spares; //built ahead of time, RSA keygen is not what we measure
+    final private AtomicInteger nextPort;
+    final private int membersPerHost;
+    private MemberHost host; //the one new members are going on, guarded by this
+    private int onHost;
+    final private Random random;
+    
+    private LoadGenerator(Map<String, String> options) throws IOException {
+        this.options = options;
+        String controller = options.get("controller");
+        boolean loopback = "loopback".equals(options.get("transport"));
+        this.transport = loopback ? new LoopbackTransport() : new TcpTransport();
+        if (controller == null) {
+            this.address = InetAddress.getLocalHost();
+            this.controllerPort = intOption("controllerPort", 15000);
+            GroupController groupController = new GroupController(controllerPort, null, transport);
+            String dataPlane = options.get("dataPlane");
+            if (dataPlane != null) {
+                int colon = dataPlane.lastIndexOf(':');
+                groupController.setDataPlane(InetAddress.getByName(dataPlane.substring(0, colon)), 
+                        Integer.parseInt(dataPlane.substring(colon + 1)));
+            }
+        } else if (loopback) {
+            throw new IllegalArgumentException("transport=loopback needs the controller in this JVM");
+        } else {
+            int colon = controller.lastIndexOf(':');
+            this.address = InetAddress.getByName(controller.substring(0, colon));
+            this.controllerPort = Integer.parseInt(controller.substring(colon + 1));
+        }
+        this.pool = Executors.newFixedThreadPool(intOption("threads", 64));
+        this.operations = new LinkedHashMap<>();
+        for (String name : new String[] {"populate", "join", "leave", "send", "message"}) {
+            operations.put(name, new Operation());
+        }
+        this.joined = new ArrayList<>();
+        this.spares = new ConcurrentLinkedQueue<>();
+        this.nextPort = new AtomicInteger(intOption("basePort", 20000));
+        this.membersPerHost = Math.max(1, intOption("membersPerHost", 1));
+        this.random = new Random();
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 1) {
+                System.out.println("usage: LoadGenerator [members=N] [joinRate=N] [leaveRate=N] [messageRate=N] [seconds=N]");
+                System.out.println("                     [threads=N] [controller=host:port] [controllerPort=N] [basePort=N]");
+                System.out.println("                     [membersPerHost=N] [transport=tcp|loopback] [dataPlane=group:port]");
+                System.out.println("                     [out=file]");
+                return;
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+    
+    private int intOption(String name, int byDefault) {
+        String value = options.get(name);
+        return value == null ? byDefault : Integer.parseInt(value);
+    }
+    
+    private void run() throws Exception {
+        int members = intOption("members", 1000);
+        int joinRate = intOption("joinRate", 10);
+        int leaveRate = intOption("leaveRate", 10);
+        int messageRate = intOption("messageRate", 100);
+        int seconds = intOption("seconds", 30);
+        long started = System.currentTimeMillis();
+        
+        buildMembers(members + joinRate * seconds);
+        populate(members);
+        
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> drivers = new ArrayList<>();
+        drivers.add(drive("join", joinRate, start, end));
+        drivers.add(drive("leave", leaveRate, start, end));
+        drivers.add(drive("send", messageRate, start, end));
+        for (Thread driver : drivers) {
+            driver.join();
+        }
+        pool.shutdown();
+        pool.awaitTermination(60, TimeUnit.SECONDS);
+        Thread.sleep(1000); //deliveries still in flight
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        
+        StringBuilder out = new StringBuilder();
+        out.append("{\"type\":\"run\",\"startedAt\":").append(started);
+        out.append(",\"members\":").append(members).append(",\"joinRate\":").append(joinRate);
+        out.append(",\"leaveRate\":").append(leaveRate).append(",\"messageRate\":").append(messageRate);
+        out.append(",\"seconds\":").append(seconds).append(",\"threads\":").append(intOption("threads", 64));
+        out.append(",\"membersPerHost\":").append(membersPerHost);
+        if (options.containsKey("dataPlane")) {
+            out.append(",\"dataPlane\":\"").append(options.get("dataPlane")).append('"');
+        }
+        out.append(",\"transport\":\"").append(transport instanceof LoopbackTransport ? "loopback" : "tcp").append('"');
+        out.append(",\"controller\":\"").append(address.getHostAddress()).append(':').append(controllerPort).append("\"}\n");
+        for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+            Operation operation = entry.getValue();
+            out.append(operation.toJson(entry.getKey(), 
+                    entry.getKey().equals("populate") ? operation.elapsedSeconds : elapsed)).append('\n');
+        }
+        write(out.toString());
+    }
+    
+    private void write(String lines) throws IOException {
+        String file = options.get("out");
+        if (file == null) {
+            System.out.print(lines);
+            System.out.flush();
+            return;
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            writer.write(lines);
+        }
+    }
+    
+    private void buildMembers(int count) throws Exception {
+        List<Future<?>> built = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            built.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    GroupMember member = membersPerHost == 1 
+                            ? new GroupMember(UUID.randomUUID(), nextPort.getAndIncrement(), transport)
+                            : new GroupMember(UUID.randomUUID(), nextHost());
+                    member.subscribe(new Receiver(), true); //every delivery, not just the latest
+                    spares.add(member);
+                }
+            }));
+        }
+        for (Future<?> future : built) {
+            future.get();
+        }
+    }
+    
+    //hosts are filled one after another, and kept to the end of the run
+    private synchronized MemberHost nextHost() {
+        if (host == null || onHost == membersPerHost) {
+            host = new MemberHost(nextPort.getAndIncrement(), transport);
+            onHost = 0;
+        }
+        onHost++;
+        return host;
+    }
+    
+    //closed loop, as fast as the threads go
+    private void populate(int count) throws Exception {
+        Operation operation = operations.get("populate");
+        long start = System.nanoTime();
+        List<Future<?>> joins = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            joins.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    join(System.nanoTime(), operations.get("populate"));
+                }
+            }));
+        }
+        for (Future<?> future : joins) {
+            future.get();
+        }
+        operation.elapsedSeconds = (System.nanoTime() - start) / 1e9;
+    }
+    
+    //schedules rate operations a second from start until end, each is handed to the pool when it is due
+    private Thread drive(final String name, final int rate, final long start, final long end) {
+        Thread driver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (rate <= 0) {
+                    return;
+                }
+                long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+                for (long due = start; due < end; due += interval) {
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                    }
+                    final long intended = due;
+                    pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            switch (name) {
+                                case "join":
+                                    join(intended, operations.get("join"));
+                                    break;
+                                case "leave":
+                                    leave(intended);
+                                    break;
+                                default:
+                                    send(intended);
+                            }
+                        }
+                    });
+                }
+            }
+        }, "load-" + name);
+        driver.start();
+        return driver;
+    }
+    
+    private void join(long intended, Operation operation) {
+        GroupMember member = spares.poll();
+        if (member == null) {
+            operation.errors.incrementAndGet();
+            return;
+        }
+        member.requestJoin(address, controllerPort);
+        if (!member.isConnected()) {
+            operation.errors.incrementAndGet();
+            return;
+        }
+        operation.latency.recordSince(intended);
+        synchronized (joined) {
+            joined.add(member);
+        }
+    }
+    
+    private void leave(long intended) {
+        Operation operation = operations.get("leave");
+        GroupMember member = pick(true);
+        if (member == null) {
+            operation.errors.incrementAndGet();
+            return;
+        }
+        synchronized (member) { //not while it is sending
+            member.requestLeave();
+            if (member.isConnected()) {
+                operation.errors.incrementAndGet();
+                return;
+            }
+        }
+        operation.latency.recordSince(intended);
+    }
+    
+    private void send(long intended) {
+        Operation operation = operations.get("send");
+        GroupMember member = pick(false);
+        if (member == null) {
+            operation.errors.incrementAndGet();
+            return;
+        }
+        synchronized (member) {
+            if (!member.isConnected()) { //a leave got to it first
+                operation.errors.incrementAndGet();
+                return;
+            }
+            member.sendMessage("load " + intended);
+        }
+        operation.latency.recordSince(intended);
+    }
+    
+    private GroupMember pick(boolean remove) {
+        synchronized (joined) {
+            if (joined.isEmpty()) {
+                return null;
+            }
+            int index = random.nextInt(joined.size());
+            return remove ? joined.remove(index) : joined.get(index);
+        }
+    }
+    
+    private static class Operation {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        double elapsedSeconds;
+        
+        private String toJson(String name, double seconds) {
+            return String.format(Locale.ROOT, "{\"type\":\"op\",\"op\":\"%s\",\"count\":%d,\"errors\":%d,\"perSecond\":%.1f,"
+                    + "\"meanMicros\":%.1f,\"p50Micros\":%d,\"p90Micros\":%d,\"p99Micros\":%d,\"p999Micros\":%d,\"maxMicros\":%d}",
+                    name, latency.getCount(), errors.get(), seconds > 0 ? latency.getCount() / seconds : 0.0,
+                    latency.getMeanMicros(), latency.getP50Micros(), latency.getP90Micros(), latency.getP99Micros(),
+                    latency.getP999Micros(), latency.getMaxMicros());
+        }
+    }
+    
+    //times our own messages from when they were due to be sent to each delivery
+    private class Receiver implements MemberUI {
+        @Override
+        public void updateState(GroupMember.InterfaceData data) {
+            String message = data.getMessage();
+            if ("Message received".equals(data.getState()) && message != null && message.startsWith("load ")) {
+                operations.get("message").latency.recordSince(Long.parseLong(message.substring(5)));
+            }
+        }
+    }
+}
@@ -1,17 +1,20 @@
 package ckcs.classes;
 
 import ckcs.classes.Exceptions.NoMemberException;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
 import java.util.UUID;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
 
 //Tree DATA STRUCTURE for CKCS PROTOCOL
 //tree constructed as a binary tree, strictly to hold data for KeyServer
@@ -24,22 +27,189 @@ public class LogicalTree {
     private Map<UUID, LeafNode> leafNodes; //UUID = groupMember ID
     private MiddleNode rootNode;
     private int numberOfCodeDigits; // for rootNode; e.g. 20143 = 5
+    //STANDBY -- a standby replays the primary's adds/removes on a copy of the tree, so every choice the tree makes
+    //must come out the same on both: node codes come from a seeded Random (re-seeded at each snapshot)
+    //and the maps iterate in insertion order, not in an order that depends on the map's history
+    private Random random = new Random();
     
     //generates new logical tree for KeyServer to maintain
     //starts with root node as group key
     public LogicalTree(int numberOfCodeDigits) {
         this.middleNodes = new TreeMap<>();
         this.codeValuesTaken = new TreeMap<>();
-        this.leafNodes = new HashMap<>(); 
+        this.leafNodes = new LinkedHashMap<>(); 
         this.numberOfCodeDigits = numberOfCodeDigits;
         this.rootNode = new MiddleNode();
         
         putMiddle(rootNode);
     }
     
+    //CLUSTER -- this tree is one top-level subtree of the group, rootCode is handed out by the coordinator
+    //so that no two nodes' subtrees share a code
+    public LogicalTree(String rootCode) {
+        this.middleNodes = new TreeMap<>();
+        this.codeValuesTaken = new TreeMap<>();
+        this.leafNodes = new LinkedHashMap<>(); 
+        this.numberOfCodeDigits = rootCode.length();
+        this.rootNode = new MiddleNode();
+        this.rootNode.nodeCode = rootCode;
+        
+        putMiddle(rootNode);
+    }
+    
+    //STANDBY -- rebuilds the tree exactly as it was when snapshot() was called on the primary
+    public LogicalTree(byte[] snapshot) throws IOException {
+        this.middleNodes = new TreeMap<>();
+        this.codeValuesTaken = new TreeMap<>();
+        this.leafNodes = new LinkedHashMap<>();
+        ByteBuffer buffer = ByteBuffer.wrap(snapshot);
+        this.random = new Random(buffer.getLong());
+        this.numberOfCodeDigits = buffer.getInt();
+        String rootCode = WireCodec.getString(buffer);
+        
+        int sizes = buffer.getInt();
+        for (int i = 0; i < sizes; i++) {
+            List<String> codes = new ArrayList<>();
+            int digitSize = buffer.getInt();
+            int count = buffer.getInt();
+            for (int j = 0; j < count; j++) {
+                codes.add(WireCodec.getString(buffer));
+            }
+            codeValuesTaken.put(digitSize, codes);
+        }
+        sizes = buffer.getInt();
+        for (int i = 0; i < sizes; i++) {
+            Map<String, MiddleNode> nodes = new LinkedHashMap<>();
+            int digitSize = buffer.getInt();
+            int count = buffer.getInt();
+            for (int j = 0; j < count; j++) {
+                MiddleNode middle = new MiddleNode(readCode(buffer), WireCodec.getString(buffer));
+                middle.key = readKey(buffer);
+                middle.numberOfChildren = buffer.getInt();
+                middle.exposed = buffer.get() == 1;
+                int children = buffer.getInt();
+                for (int k = 0; k < children; k++) {
+                    middle.children.add(WireCodec.getUUID(buffer));
+                }
+                nodes.put(middle.nodeCode, middle);
+            }
+            middleNodes.put(digitSize, nodes);
+        }
+        int leaves = buffer.getInt();
+        for (int i = 0; i < leaves; i++) {
+            UUID memberId = WireCodec.getUUID(buffer);
+            String parentCode = WireCodec.getString(buffer);
+            leafNodes.put(memberId, new LeafNode(parentCode, readKey(buffer)));
+        }
+        this.rootNode = getMiddle(rootCode);
+        if (rootNode == null) {
+            throw new IOException("Snapshot has no root node " + rootCode);
+        }
+    }
+    
+    //STANDBY -- the whole tree, member keys included, in the order it iterates
+    //re-seeds the tree's Random, the standby starts from the same seed
+    public byte[] snapshot(long seed) {
+        random = new Random(seed);
+        int size = 8 + 4 + WireCodec.stringSize(rootNode.nodeCode) + 4 + 4;
+        for (List<String> codes : codeValuesTaken.values()) {
+            size += 8;
+            for (String code : codes) {
+                size += WireCodec.stringSize(code);
+            }
+        }
+        for (Map<String, MiddleNode> nodes : middleNodes.values()) {
+            size += 8;
+            for (MiddleNode middle : nodes.values()) {
+                size += codeSize(middle.parentCode) + WireCodec.stringSize(middle.nodeCode) + keySize(middle.key)
+                        + 4 + 1 + 4 + 16 * middle.children.size();
+            }
+        }
+        size += 4;
+        for (LeafNode leaf : leafNodes.values()) {
+            size += 16 + WireCodec.stringSize(leaf.parentCode) + keySize(leaf.key);
+        }
+        
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putLong(seed);
+        buffer.putInt(numberOfCodeDigits);
+        WireCodec.putString(buffer, rootNode.nodeCode);
+        buffer.putInt(codeValuesTaken.size());
+        for (Map.Entry<Integer, List<String>> entry : codeValuesTaken.entrySet()) {
+            buffer.putInt(entry.getKey());
+            buffer.putInt(entry.getValue().size());
+            for (String code : entry.getValue()) {
+                WireCodec.putString(buffer, code);
+            }
+        }
+        buffer.putInt(middleNodes.size());
+        for (Map.Entry<Integer, Map<String, MiddleNode>> entry : middleNodes.entrySet()) {
+            buffer.putInt(entry.getKey());
+            buffer.putInt(entry.getValue().size());
+            for (MiddleNode middle : entry.getValue().values()) {
+                writeCode(buffer, middle.parentCode);
+                WireCodec.putString(buffer, middle.nodeCode);
+                writeKey(buffer, middle.key);
+                buffer.putInt(middle.numberOfChildren);
+                buffer.put((byte)(middle.exposed ? 1 : 0));
+                buffer.putInt(middle.children.size());
+                for (UUID child : middle.children) {
+                    WireCodec.putUUID(buffer, child);
+                }
+            }
+        }
+        buffer.putInt(leafNodes.size());
+        for (Map.Entry<UUID, LeafNode> entry : leafNodes.entrySet()) {
+            WireCodec.putUUID(buffer, entry.getKey());
+            WireCodec.putString(buffer, entry.getValue().parentCode);
+            writeKey(buffer, entry.getValue().key);
+        }
+        return buffer.array();
+    }
+    
+    //root has no parentCode, middle keys are null until the first leave
+    private static int codeSize(String code) {
+        return 1 + (code == null ? 0 : WireCodec.stringSize(code));
+    }
+    
+    private static void writeCode(ByteBuffer buffer, String code) {
+        buffer.put((byte)(code == null ? 0 : 1));
+        if (code != null) {
+            WireCodec.putString(buffer, code);
+        }
+    }
+    
+    private static String readCode(ByteBuffer buffer) throws IOException {
+        return buffer.get() == 0 ? null : WireCodec.getString(buffer);
+    }
+    
+    private static int keySize(SecretKey key) {
+        return 4 + (key == null ? 0 : key.getEncoded().length);
+    }
+    
+    private static void writeKey(ByteBuffer buffer, SecretKey key) {
+        if (key == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] encoded = key.getEncoded();
+        buffer.putInt(encoded.length);
+        buffer.put(encoded);
+    }
+    
+    private static SecretKey readKey(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] encoded = new byte[length];
+        buffer.get(encoded);
+        return new SecretKeySpec(encoded, "AES");
+    }
+    
     public SecretKey getMemberKey(UUID memId) {
         LeafNode member = leafNodes.get(memId);
-        return member.key;
+        return member == null ? null : member.key;
     }
     
     public SecretKey getGroupKey() {
@@ -56,10 +226,64 @@ public class LogicalTree {
         return child.parentCode;
     }
     
+    //the members whose leaf is under the middle node nodeCode -- every code on a member's path is a prefix
+    //of its parentCode, so they are the members whose parentCode starts with it
+    public synchronized List<UUID> membersUnder(String nodeCode) {
+        List<UUID> members = new ArrayList<>();
+        for (Map.Entry<UUID, LeafNode> entry : leafNodes.entrySet()) {
+            if (entry.getValue().parentCode.startsWith(nodeCode)) {
+                members.add(entry.getKey());
+            }
+        }
+        return members;
+    }
+    
+    //same, for the code the member is SENT on join -- later leave rekeys only carry how it changed since
+    public synchronized String announceParentCode(UUID memberId) {
+        LeafNode child = leafNodes.get(memberId);
+        child.announcedCode = child.parentCode;
+        return child.parentCode;
+    }
+    
+    //the member may not have the last code it was sent -- its next rekey carries the whole code again
+    public synchronized void resendParentCode(UUID memberId) {
+        LeafNode child = leafNodes.get(memberId);
+        if (child != null) {
+            child.announcedCode = null;
+        }
+    }
+    
     public String getRootCode() {
         return rootNode.nodeCode;
     }
     
+    //middle nodes a leave has exposed, see setExposed
+    public synchronized int getExposedCount() {
+        int exposed = 0;
+        for (Map<String, MiddleNode> nodes : middleNodes.values()) {
+            for (MiddleNode node : nodes.values()) {
+                if (node.exposed) {
+                    exposed++;
+                }
+            }
+        }
+        return exposed;
+    }
+    
+    //levels of middleNodes on the longest path down, the root counts as one
+    public int getDepth() {
+        for (Map.Entry<Integer, Map<String, MiddleNode>> entry : middleNodes.descendingMap().entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                return entry.getKey() - numberOfCodeDigits + 1;
+            }
+        }
+        return 0;
+    }
+    
+    public synchronized int getMemberCount() {
+        return leafNodes.size();
+    }
+    
     @Override
     public String toString() {
         return "members: " + leafNodes.values().size();
@@ -77,27 +301,72 @@ public class LogicalTree {
         if (member == null) 
             throw new NoMemberException("Given memberId does not match a registered member");
         
+        TraceEvent event = TraceEvent.begin(TraceEvent.Type.ENCRYPT_GK);
         int level = 0;
         ArrayList<String> path = pathToRoot(member);
         ListIterator<String> it = path.listIterator(path.size());
-        while (it.hasPrevious()) {
+        byte[] encrypted = null;
+        while (it.hasPrevious() && encrypted == null) {
             String nodeCode = it.previous();
             MiddleNode middle = getMiddle(nodeCode);
             level++;
             if (!middle.exposed) {
-                return encryptGK(middle.key, member, level);
+                encrypted = encryptGK(middle.key, member, level);
             }
         }
-        level++;
-        return encryptGK(member.key, member, level);
+        if (encrypted == null) {
+            level++;
+            encrypted = encryptGK(member.key, member, level);
+        }
+        event.setMemberCount(leafNodes.size());
+        event.setPathLength(path.size());
+        event.setExposedNodes(level - 1); //passed over on the way down
+        event.setPayloadBytes(encrypted.length);
+        event.commit();
+        return encrypted;
+    }
+    
+    //CLUSTER -- the GK was changed by a leave on ANOTHER node (or another stripe), nothing in this tree is exposed
+    //so every member gets the same GK ciphertext, encrypted under this tree's ROOT key -- LEVEL 0
+    //encryptedGK is computed once by the caller (see StripedTree), only the member's parentCode differs per member
+    public byte[] encryptGKUnderRoot(UUID memberId, byte[] encryptedGK) throws NoMemberException {
+        LeafNode member = leafNodes.get(memberId);
+        if (member == null) 
+            throw new NoMemberException("Given memberId does not match a registered member");
+        return frameGK(encryptedGK, member, 0);
     }
     
     private byte[] encryptGK(SecretKey key, LeafNode member, int level) {
-        byte[] GK = Security.AESEncrypt(key, rootNode.key.getEncoded());
-        byte[] code = member.parentCode.getBytes(StandardCharsets.UTF_8);
-        ByteBuffer buffer = ByteBuffer.allocate(GK.length + code.length + (3 * 4));
-        buffer.putInt(code.length);
-        buffer.put(code);
+        return frameGK(Security.AESEncrypt(key, rootNode.key.getEncoded()), member, level);
+    }
+    
+    //the member's parentCode goes as a delta from the last one it was sent -- most leaves move nobody, then
+    //it is just -1, otherwise how many leading characters of its old code to keep + the new suffix
+    //(a code nobody was told yet, e.g. after a failover or a failed send, keeps 0 -- the whole code)
+    //the suffix goes in the clear, as the whole code always did -- the middle keys it names are built from
+    //the GK, which only the members have
+    private byte[] frameGK(byte[] GK, LeafNode member, int level) {
+        String announced = member.announcedCode;
+        String current = member.parentCode;
+        int keep = -1;
+        byte[] suffix = new byte[0];
+        if (!current.equals(announced)) {
+            keep = 0;
+            if (announced != null) {
+                while (keep < announced.length() && keep < current.length() 
+                        && announced.charAt(keep) == current.charAt(keep)) {
+                    keep++;
+                }
+            }
+            suffix = current.substring(keep).getBytes(StandardCharsets.UTF_8);
+            member.announcedCode = current;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(2 + (keep < 0 ? 0 : 2 + suffix.length) + 4 + 4 + GK.length);
+        buffer.putShort((short)keep);
+        if (keep >= 0) {
+            buffer.putShort((short)suffix.length);
+            buffer.put(suffix);
+        }
         buffer.putInt(level);
         buffer.putInt(GK.length);
         buffer.put(GK, 0, GK.length);
@@ -114,10 +383,12 @@ public class LogicalTree {
             throw new Exceptions.NoMemberException("Given member does not exist in tree.");
         }
         
+        TraceEvent event = TraceEvent.begin(TraceEvent.Type.TREE_REMOVE);
         MiddleNode parent = getMiddle(member.parentCode);
         parent.children.remove(memberId);
         parent.numberOfChildren--;
-        setExposed(pathToRoot(member));
+        ArrayList<String> path = pathToRoot(member);
+        setExposed(path);
         
         if (parent.children.isEmpty()) { //means there are no LEAFNODE CHILD -- it has MIDDLENODE CHILD
             int siblingDigitSize = parent.nodeCode.length() + 1;
@@ -151,13 +422,20 @@ public class LogicalTree {
         }
         leafNodes.remove(memberId);
         updateMiddleKeys();
+        event.setMemberCount(leafNodes.size());
+        event.setPathLength(path.size());
+        event.setExposedNodes(path.size());
+        event.commit();
     } 
     
     //FOR REMOVE -- appropriately repositions the SIBLING MIDDLE NODE's children
     private void handleMiddleSibling(MiddleNode parent, MiddleNode sibling) {
         int siblingDigitSize = sibling.nodeCode.length();
         int childDigitSize = siblingDigitSize + 1;
-        List<String> codes = new ArrayList<>(codeValuesTaken.get(childDigitSize));
+        List<String> codes = new ArrayList<>();
+        if (codeValuesTaken.containsKey(childDigitSize)) { //none if the sibling only has LEAFNODE children
+            codes.addAll(codeValuesTaken.get(childDigitSize));
+        }
         List<String> children = new ArrayList<>();
         for (String nodeCode : codes) {
             MiddleNode child = getMiddle(nodeCode);
@@ -205,6 +483,17 @@ public class LogicalTree {
     //a new MIDDLENODE and attach new member to that NEW MIDDLENODE
     //This ensures that ALL MIDDLENODES are full with children before deciding to replace a CHILD with a new MIDDLENODE 
     public synchronized void add(UUID memberId, SecretKey key) {
+        TraceEvent event = TraceEvent.begin(TraceEvent.Type.TREE_ADD);
+        addLeaf(memberId, key);
+        if (TraceEvent.isEnabled()) {
+            LeafNode added = leafNodes.get(memberId);
+            event.setMemberCount(leafNodes.size());
+            event.setPathLength(added == null ? -1 : pathToRoot(added).size());
+            event.commit();
+        }
+    }
+    
+    private void addLeaf(UUID memberId, SecretKey key) {
         if (rootNode.numberOfChildren == 2) {
             for (Integer size : middleNodes.keySet()) {
                 Map<String, MiddleNode> middles = middleNodes.get(size);
@@ -244,6 +533,12 @@ public class LogicalTree {
         return false;       
     }
     
+    //CLUSTER -- GK changes from other nodes can land between a remove and its rekey,
+    //so the middle keys are brought up to the current (pre-rekey) GK again right before encrypting
+    public void refreshMiddleKeys() {
+        updateMiddleKeys();
+    }
+    
     //Updates the middleKey values for every MiddleNode AFTER A LEAVE -- because only then is it actually needed
     //MiddleKey values are NOT NEEDED for member Join
     //It updates them to the CURRENT GK -- BEFORE member LEAVES -- NOT THE NEW GK AFTER LEAVE
@@ -290,9 +585,9 @@ public class LogicalTree {
             codeValuesTaken.put(digitSize, codes);
         }
         List<String> codes = codeValuesTaken.get(digitSize);
-        String code = parentCode + (int)(10 * Math.random());
+        String code = parentCode + random.nextInt(10);
         while (codes.contains(code)) {
-            code = parentCode + (int)(10 * Math.random());
+            code = parentCode + random.nextInt(10);
         }
         return code;
     }
@@ -326,7 +621,7 @@ public class LogicalTree {
     
     private String setRootCode(int DigitLength) {
         int multiplier = (int)(Math.pow(10, DigitLength));
-        int code = (int)(Math.pow(10, DigitLength) * Math.random());
+        int code = (int)(Math.pow(10, DigitLength) * random.nextDouble());
         if (code / (multiplier / 10) < 1) 
             code *= 10;
         return Integer.toString(code);
@@ -335,7 +630,7 @@ public class LogicalTree {
     private void putMiddle(MiddleNode node) {
         Integer digitSize = node.nodeCode.length();
         if (middleNodes.get(digitSize) == null) {
-            middleNodes.put(digitSize, new HashMap<String, MiddleNode>());
+            middleNodes.put(digitSize, new LinkedHashMap<String, MiddleNode>());
             codeValuesTaken.put(digitSize, new ArrayList<String>());
         }
         codeValuesTaken.get(digitSize).add(node.nodeCode);
@@ -371,6 +666,13 @@ public class LogicalTree {
             this.nodeCode = addRandomDigit(parentCode);
         }
         
+        //ONLY for a snapshot being restored, the code is already decided
+        private MiddleNode(String parentCode, String nodeCode) {
+            this.parentCode = parentCode;
+            this.nodeCode = nodeCode;
+            this.children = new ArrayList<>();
+        }
+        
         //ONLY for rootNode
         private MiddleNode() {
             this.numberOfChildren = 0;
@@ -385,6 +687,7 @@ public class LogicalTree {
     private class LeafNode {
         private final SecretKey key;
         private String parentCode;
+        private String announcedCode; //the parentCode the member was last sent, null if it hasn't been
         
         private LeafNode(String position, SecretKey key) {
             this.parentCode = position; 
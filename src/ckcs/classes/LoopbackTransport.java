@@ -0,0 +1,232 @@
+package ckcs.classes;
+
+import ckcs.interfaces.Transport;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//In-process transport -- listeners are looked up by port alone (the address is ignored), so one JVM can hold
+//far more "members" than there are TCP ports and no port ever has to be free
+//a flush hands the writer's buffer ITSELF to the reader -- no copy between the two ends, no kernel, no syscalls
+//writes never block, the reader's side of a connection is unbounded
+//every controller and member that should see each other must share the one LoopbackTransport instance
+public class LoopbackTransport implements Transport {
+    
+    private static final int BUFFER_SIZE = 512;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    
+    final private ConcurrentMap<Integer, LoopbackListener> listeners = new ConcurrentHashMap<>();
+    
+    @Override
+    public Listener listen(int port) throws IOException {
+        LoopbackListener listener = new LoopbackListener(port);
+        if (listeners.putIfAbsent(port, listener) != null) {
+            throw new SocketException("Address already in use: loopback port " + port);
+        }
+        return listener;
+    }
+    
+    @Override
+    public Connection connect(InetAddress address, int port, int timeoutMillis) throws IOException {
+        LoopbackListener listener = listeners.get(port);
+        if (listener == null) {
+            throw new ConnectException("Connection refused: nothing listening on loopback port " + port);
+        }
+        BlockingQueue<ByteBuffer> toServer = new LinkedBlockingQueue<>();
+        BlockingQueue<ByteBuffer> toClient = new LinkedBlockingQueue<>();
+        LoopbackConnection client = new LoopbackConnection(toClient, toServer);
+        LoopbackConnection server = new LoopbackConnection(toServer, toClient);
+        client.peer = server;
+        server.peer = client;
+        if (!listener.backlog.offer(server) || listener.closed.get()) {
+            throw new ConnectException("Connection refused: loopback port " + port + " closed");
+        }
+        return client;
+    }
+    
+    private class LoopbackListener implements Listener {
+        final private int port;
+        final private BlockingQueue<LoopbackConnection> backlog = new LinkedBlockingQueue<>();
+        final private AtomicBoolean closed = new AtomicBoolean();
+        
+        private LoopbackListener(int port) {
+            this.port = port;
+        }
+        
+        @Override
+        public Connection accept() throws IOException {
+            try {
+                LoopbackConnection connection = backlog.take();
+                if (connection.peer == null) { //close() woke us up
+                    backlog.offer(connection); //and anyone else waiting
+                    throw new SocketException("Listener closed");
+                }
+                return connection;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                listeners.remove(port, this);
+                LoopbackConnection pending;
+                while ((pending = backlog.poll()) != null) {
+                    pending.close(); //never accepted, the client sees the end of the stream
+                }
+                backlog.offer(new LoopbackConnection(null, null));
+            }
+        }
+    }
+    
+    private static class LoopbackConnection implements Connection {
+        final private BlockingQueue<ByteBuffer> inbound;
+        final private BlockingQueue<ByteBuffer> outbound;
+        final private AtomicBoolean closed = new AtomicBoolean();
+        private LoopbackConnection peer; //set before the connection is handed out
+        private DataOutputStream out;
+        private DataInputStream in;
+        
+        private LoopbackConnection(BlockingQueue<ByteBuffer> inbound, BlockingQueue<ByteBuffer> outbound) {
+            this.inbound = inbound;
+            this.outbound = outbound;
+        }
+        
+        @Override
+        public synchronized DataOutputStream getOutput() {
+            if (out == null) {
+                out = new DataOutputStream(new PipeOutput());
+            }
+            return out;
+        }
+        
+        @Override
+        public synchronized DataInputStream getInput() {
+            if (in == null) {
+                in = new DataInputStream(new PipeInput());
+            }
+            return in;
+        }
+        
+        //the peer reads what was flushed, then the end of the stream -- our own blocked reader wakes up too
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                outbound.offer(END);
+                inbound.offer(END);
+            }
+        }
+        
+        private class PipeOutput extends OutputStream {
+            private byte[] buffer = new byte[BUFFER_SIZE];
+            private int count;
+            
+            @Override
+            public void write(int b) throws IOException {
+                ensure(1);
+                buffer[count++] = (byte)b;
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ensure(len);
+                System.arraycopy(b, off, buffer, count, len);
+                count += len;
+            }
+            
+            private void ensure(int len) throws IOException {
+                if (closed.get() || peer.closed.get()) {
+                    throw new SocketException("Connection closed");
+                }
+                if (count + len > buffer.length) {
+                    byte[] bigger = new byte[Math.max(buffer.length * 2, count + len)];
+                    System.arraycopy(buffer, 0, bigger, 0, count);
+                    buffer = bigger;
+                }
+            }
+            
+            //hands the buffer over as is and starts a new one
+            @Override
+            public void flush() throws IOException {
+                if (count == 0) {
+                    return;
+                }
+                if (closed.get() || peer.closed.get()) {
+                    throw new SocketException("Connection closed");
+                }
+                outbound.offer(ByteBuffer.wrap(buffer, 0, count));
+                buffer = new byte[Math.max(BUFFER_SIZE, count)];
+                count = 0;
+            }
+            
+            @Override
+            public void close() throws IOException {
+                LoopbackConnection.this.close();
+            }
+        }
+        
+        private class PipeInput extends InputStream {
+            private ByteBuffer chunk;
+            
+            //null at the end of the stream
+            private ByteBuffer current() throws IOException {
+                while (chunk == null || !chunk.hasRemaining()) {
+                    if (chunk == END) {
+                        return null;
+                    }
+                    try {
+                        chunk = inbound.take();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                return chunk;
+            }
+            
+            @Override
+            public int read() throws IOException {
+                ByteBuffer current = current();
+                return current == null ? -1 : current.get() & 0xFF;
+            }
+            
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                ByteBuffer current = current();
+                if (current == null) {
+                    return -1;
+                }
+                int n = Math.min(len, current.remaining());
+                current.get(b, off, n);
+                return n;
+            }
+            
+            @Override
+            public int available() {
+                return chunk == null || chunk == END ? 0 : chunk.remaining();
+            }
+            
+            @Override
+            public void close() {
+                LoopbackConnection.this.close();
+            }
+        }
+    }
+}
@@ -1,12 +1,10 @@
 package ckcs.classes;
 
-import static java.lang.Thread.sleep;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
 
+//a controller and two members on localhost -- for join/leave/message benchmarks see LoadGenerator
 public class MainClass {
-    static ArrayList<GroupMember> members = new ArrayList<>();
     static InetAddress address;
     static GroupController keyServer;
     
@@ -20,42 +18,5 @@ public class MainClass {
         m1.requestJoin(address, 15000);
         m2.requestJoin(address, 15000);
         m1.sendMessage("HELLO");
-        
-        /*for (int i = 0; i < 64; i++) {
-            addMember(10100 + i, 15000);
-        }
-        
-        for (int i = 0; i < 64; i++) {
-            removeMember(i - i);
-        }*/
-    }
-    
-    private static void printMembers() throws InterruptedException {
-        sleep(100);
-        for (GroupMember mem : members) 
-            System.out.println(mem.toString());
-    }
-    
-    private static void addMember(int port, int servPort) throws InterruptedException {
-        GroupMember member = new GroupMember(port);
-        long start = System.nanoTime();
-        member.requestJoin(address, servPort);
-        members.add(member);
-        long end = System.nanoTime();
-        //printMembers();
-        System.out.println(keyServer.toString());
-        System.out.println((end - start)/1000 + " microseconds");
-    }
-    
-    private static void removeMember(int index) throws InterruptedException {
-        GroupMember member = members.get(index);
-        long start = System.nanoTime();
-        member.requestLeave();
-        members.remove(index);
-        long end = System.nanoTime();
-        //printMembers();
-        System.out.println(keyServer.toString());
-        System.out.println((end - start)/1000 + " microseconds");
-        
     }
 }
@@ -0,0 +1,202 @@
+package ckcs.classes;
+
+import ckcs.interfaces.RequestCode;
+import ckcs.interfaces.Transport;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//One listener for any number of GroupMembers in this process -- the controller keeps a single connection
+//to each host (address + port), every frame on it carries the ID of the member it is for
+//the reader hands each frame to its member's inbound queue, so a member costs its keys and queues, not
+//a port, a socket and a thread
+//a GroupMember made without a host gets one of its own
+public class MemberHost {
+
+    final private int port; //the port every member of this host gives the controller
+    final private Transport transport;
+    final private ConcurrentMap<UUID, GroupMember> members;
+    private Transport.Listener listener; //bound on the first register, guarded by this
+    final private Map<InetSocketAddress, DataPlane> dataPlanes; //guarded by this
+    private volatile boolean closed;
+    //shared by the host's members, a set apiece would cost a member more than its keys do
+    final private LatencyHistogram joinHandshake;
+    final private LatencyHistogram rekey;
+    final private LatencyHistogram messageDecrypt;
+
+    private static final ExecutorService READERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "member-host-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public MemberHost(int port) {
+        this(port, new TcpTransport());
+    }
+
+    //port is only a listener key on a LoopbackTransport, any int will do
+    public MemberHost(int port, Transport transport) {
+        this.port = port;
+        this.transport = transport;
+        this.members = new ConcurrentHashMap<>();
+        this.dataPlanes = new HashMap<>();
+        this.joinHandshake = new LatencyHistogram();
+        this.rekey = new LatencyHistogram();
+        this.messageDecrypt = new LatencyHistogram();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public int getMemberCount() {
+        return members.size();
+    }
+
+    LatencyHistogram getJoinHandshake() {
+        return joinHandshake;
+    }
+
+    LatencyHistogram getRekey() {
+        return rekey;
+    }
+
+    LatencyHistogram getMessageDecrypt() {
+        return messageDecrypt;
+    }
+
+    //called BEFORE the member joins -- the controller may send to it as soon as it is in the tree
+    synchronized void register(GroupMember member) throws IOException {
+        if (closed) {
+            throw new IOException("Member host on port " + port + " is closed");
+        }
+        if (listener == null) {
+            listener = transport.listen(port);
+            READERS.execute(new Acceptor(listener));
+            registerMetrics();
+        }
+        members.put(member.getId(), member);
+    }
+
+    void unregister(GroupMember member) {
+        members.remove(member.getId(), member);
+    }
+
+    //one socket per multicast group for all of the host's members on it
+    synchronized DataPlane joinDataPlane(InetSocketAddress group, GroupMember member) throws IOException {
+        DataPlane dataPlane = dataPlanes.get(group);
+        if (dataPlane == null) {
+            dataPlane = new DataPlane(group);
+            dataPlanes.put(group, dataPlane);
+            READERS.execute(dataPlane);
+        }
+        dataPlane.add(member);
+        return dataPlane;
+    }
+
+    synchronized void leaveDataPlane(DataPlane dataPlane, GroupMember member) {
+        if (dataPlane.remove(member) && dataPlanes.remove(dataPlane.getGroup()) != null) {
+            dataPlane.close();
+        }
+    }
+
+    //stops listening, the members still registered get nothing more
+    public synchronized void close() {
+        closed = true;
+        members.clear();
+        for (DataPlane dataPlane : dataPlanes.values()) {
+            dataPlane.close();
+        }
+        dataPlanes.clear();
+        if (listener != null) {
+            MetricsExporter.unregister("MemberHost", String.valueOf(port));
+            try {
+                listener.close();
+            } catch (IOException ex) {
+                Logger.getLogger(MemberHost.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+    }
+
+    //from the first register to the close
+    private void registerMetrics() {
+        Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+        histograms.put("JoinHandshake", joinHandshake);
+        histograms.put("Rekey", rekey);
+        histograms.put("MessageDecrypt", messageDecrypt);
+        MetricsExporter.register("MemberHost", String.valueOf(port), histograms);
+    }
+
+    private class Acceptor implements Runnable {
+        final Transport.Listener listener;
+
+        private Acceptor(Transport.Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    READERS.execute(new Reader(listener.accept()));
+                }
+            } catch (IOException ex) {
+                if (!closed) {
+                    Logger.getLogger(MemberHost.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    //reads one controller connection until it closes -- normally one per controller, reopened after a failure
+    //(a new one only comes after the last is given up on, so each member's frames still arrive in order)
+    private class Reader implements Runnable {
+        final Transport.Connection connection;
+
+        private Reader(Transport.Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void run() {
+            try (Transport.Connection open = connection) {
+                DataInputStream in = open.getInput();
+                int code;
+                while (!closed && (code = WireCodec.readHeaderOrEnd(in)) != -1) {
+                    UUID memberID = WireCodec.readUUID(in);
+                    byte[] body = code == RequestCode.FORCE_REMOVE ? null : WireCodec.readBytes(in);
+                    GroupMember member = members.get(memberID);
+                    if (member != null) { //otherwise it left while frames were still on their way
+                        member.receive(code, body);
+                    }
+                }
+            } catch (IOException ex) {
+                if (!closed) {
+                    Logger.getLogger(MemberHost.class.getName()).log(Level.WARNING,
+                            "Lost a controller connection: {0}", ex.toString());
+                }
+            }
+        }
+    }
+}
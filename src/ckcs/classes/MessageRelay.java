@@ -0,0 +1,217 @@
+package ckcs.classes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//Collects group messages that were already decrypted (in parallel, by the request handlers)
+//and hands them to the controller in batches -- everything that arrives within one window becomes
+//ONE payload, encrypted once under the GK and sent as one frame per member
+//Handlers race each other, so messages are put back in order per sender using the sender's sequence number
+public class MessageRelay implements Runnable {
+
+    //receives each finished batch, in order, from the relay thread
+    public interface Sink {
+        void deliver(List<Message> batch);
+    }
+
+    public static final int MAX_BATCH_BYTES = 256 * 1024;
+    public static final int MAX_PENDING = 4096;
+    //how long a message is held back waiting for an earlier one from the same sender before giving up on the gap
+    public static final long MAX_HOLD_MILLIS = 200;
+
+    final private Sink sink;
+    final private long windowMillis;
+    final private BlockingQueue<Message> pending; //unbounded, room is the capacity below
+    final private Semaphore capacity; //MAX_PENDING messages, a forget marker needs no room
+    final private Map<UUID, Sender> senders; //only touched by the relay thread
+    private volatile boolean closed;
+
+    public MessageRelay(Sink sink, long windowMillis) {
+        this.sink = sink;
+        this.windowMillis = windowMillis;
+        this.pending = new LinkedBlockingQueue<>();
+        this.capacity = new Semaphore(MAX_PENDING);
+        this.senders = new HashMap<>();
+    }
+
+    //called from the request handlers -- blocks the handler (and so the sender's connection) when the relay is behind
+    public void submit(Message message) throws InterruptedException {
+        capacity.acquire();
+        pending.put(message);
+    }
+
+    //sender has left, forget its sequence state -- queued behind its last messages, and never refused or blocked
+    //(the controller calls this under its lock, which the relay thread needs to deliver a batch)
+    public void forget(final UUID senderId) {
+        pending.add(new Message(senderId, -1, null));
+    }
+
+    //the relay thread stops within MAX_HOLD_MILLIS, what is still pending is not delivered
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public void run() {
+        List<Message> batch = new ArrayList<>();
+        try {
+            while (!closed && !Thread.currentThread().isInterrupted()) {
+                Message first = pending.poll(MAX_HOLD_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    int bytes = accept(first, batch);
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+                    long wait;
+                    while (bytes < MAX_BATCH_BYTES && (wait = deadline - System.nanoTime()) > 0) {
+                        Message next = pending.poll(wait, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        bytes += accept(next, batch);
+                    }
+                }
+                releaseExpired(batch);
+                if (!batch.isEmpty()) {
+                    sink.deliver(batch);
+                    batch = new ArrayList<>();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException ex) {
+            Logger.getLogger(MessageRelay.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    //puts the message in the batch if it is next in its sender's sequence, otherwise holds it back
+    //returns the number of bytes added to the batch
+    private int accept(Message message, List<Message> batch) {
+        if (message.body == null) {
+            senders.remove(message.sender);
+            return 0;
+        }
+        capacity.release();
+        Sender sender = senders.get(message.sender);
+        if (sender == null) {
+            sender = new Sender();
+            senders.put(message.sender, sender);
+        }
+        if (message.seq < sender.nextSeq) { //late, its gap was already given up on -- still deliver it
+            batch.add(message);
+            return message.body.length;
+        }
+        sender.held.put(message.seq, message);
+        return release(sender, batch);
+    }
+
+    private int release(Sender sender, List<Message> batch) {
+        int bytes = 0;
+        Message next;
+        while ((next = sender.held.remove(sender.nextSeq)) != null) {
+            batch.add(next);
+            bytes += next.body.length;
+            sender.nextSeq++;
+        }
+        if (sender.held.isEmpty()) {
+            sender.heldSince = 0;
+        } else if (bytes > 0 || sender.heldSince == 0) { //a new gap opened
+            sender.heldSince = System.nanoTime();
+        }
+        return bytes;
+    }
+
+    //gives up on gaps that have been open for too long -- the missing message is most likely lost
+    private void releaseExpired(List<Message> batch) {
+        long now = System.nanoTime();
+        for (Sender sender : senders.values()) {
+            if (sender.heldSince != 0 && now - sender.heldSince > TimeUnit.MILLISECONDS.toNanos(MAX_HOLD_MILLIS)) {
+                sender.nextSeq = sender.held.firstKey();
+                release(sender, batch);
+            }
+        }
+    }
+
+    //---- batch payload: count, then sender ID + length-prefixed body for each message ----
+
+    public static byte[] encodeBatch(List<Message> batch) {
+        int size = 4;
+        for (Message message : batch) {
+            size += 16 + 4 + message.body.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(batch.size());
+        for (Message message : batch) {
+            WireCodec.putUUID(buffer, message.sender);
+            buffer.putInt(message.body.length);
+            buffer.put(message.body);
+        }
+        return buffer.array();
+    }
+
+    public static List<Message> decodeBatch(byte[] payload) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int count = buffer.getInt();
+        if (count < 0 || count > payload.length / 20) {
+            throw new IOException("Bad message count: " + count);
+        }
+        List<Message> batch = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            UUID sender = WireCodec.getUUID(buffer);
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IOException("Bad message length: " + length);
+            }
+            byte[] body = new byte[length];
+            buffer.get(body);
+            batch.add(new Message(sender, -1, body));
+        }
+        return batch;
+    }
+
+    public static class Message {
+        private final UUID sender;
+        private final long seq;
+        private final byte[] body;
+        private final long received; //nanoTime, for the relay latency
+
+        public Message(UUID sender, long seq, byte[] body) {
+            this.sender = sender;
+            this.seq = seq;
+            this.body = body;
+            this.received = System.nanoTime();
+        }
+
+        public UUID getSender() {
+            return sender;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public long getReceivedNanos() {
+            return received;
+        }
+    }
+
+    private static class Sender {
+        private long nextSeq;
+        private long heldSince; //nanoTime the current gap opened, 0 if none
+        private final TreeMap<Long, Message> held = new TreeMap<>();
+    }
+}
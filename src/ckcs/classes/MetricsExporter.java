@@ -0,0 +1,70 @@
+package ckcs.classes;
+
+import ckcs.interfaces.LatencyHistogramMBean;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+//registers metrics with the platform MBean server, under ckcs:type=<type>,name=<name>[,histogram=<histogram>]
+//so jconsole/VisualVM (or any JMX client) can read them from a running controller or member
+//a registration that fails is logged, metrics are never worth failing the caller over
+public final class MetricsExporter {
+    
+    private MetricsExporter() {
+    }
+    
+    public static <T> void register(String type, String name, T mbean, Class<T> mbeanInterface,
+            Map<String, LatencyHistogram> histograms) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String base = "ckcs:type=" + type + ",name=" + ObjectName.quote(name);
+        try {
+            register(server, new ObjectName(base), new StandardMBean(mbean, mbeanInterface));
+            register(server, base, histograms);
+        } catch (JMException ex) {
+            Logger.getLogger(MetricsExporter.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+    
+    //histograms with nothing else to show next to them
+    public static void register(String type, String name, Map<String, LatencyHistogram> histograms) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(server, "ckcs:type=" + type + ",name=" + ObjectName.quote(name), histograms);
+        } catch (JMException ex) {
+            Logger.getLogger(MetricsExporter.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+    
+    public static void unregister(String type, String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (ObjectName registered : server.queryNames(
+                    new ObjectName("ckcs:type=" + type + ",name=" + ObjectName.quote(name) + ",*"), null)) {
+                server.unregisterMBean(registered);
+            }
+        } catch (JMException ex) {
+            Logger.getLogger(MetricsExporter.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+    
+    private static void register(MBeanServer server, String base, Map<String, LatencyHistogram> histograms)
+            throws JMException {
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            register(server, new ObjectName(base + ",histogram=" + entry.getKey()), 
+                    new StandardMBean(entry.getValue(), LatencyHistogramMBean.class));
+        }
+    }
+    
+    //a controller restarted in the same JVM with the same name replaces the old registration
+    private static void register(MBeanServer server, ObjectName name, Object mbean) throws JMException {
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(mbean, name);
+    }
+}
@@ -0,0 +1,173 @@
+package ckcs.classes;
+
+import ckcs.interfaces.RequestCode;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.PrivateKey;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.SecretKey;
+
+//The primary's end of a standby connection -- streams a snapshot of the tree, then every tree mutation and
+//GK change, in the order the controller made them (they are appended under the controller lock)
+//the standby acks what it has applied, so a join/leave reply can wait until the standby has it too
+//there is no fencing: a standby that loses this connection takes over, even if the primary is still alive
+public class Replicator implements Runnable {
+
+    //the standby takes over after missing a few of these
+    public static final long HEARTBEAT_MILLIS = 100;
+
+    final private Socket socket;
+    final private DataInputStream in;
+    final private DataOutputStream out;
+    final private SecretKey sessionKey;
+    final private BlockingQueue<Frame> outbound;
+    private long acked; //guarded by this
+    private volatile boolean closed;
+
+    private Replicator(Socket socket, DataInputStream in, DataOutputStream out, SecretKey sessionKey) {
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+        this.sessionKey = sessionKey;
+        this.outbound = new LinkedBlockingQueue<>();
+    }
+
+    //authenticates a standby that just connected -- null if it can't be trusted
+    public static Replicator accept(Socket socket, Security.SignedKey signedKey, PrivateKey privKey) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        if (WireCodec.readHeader(in) != RequestCode.STANDBY_REGISTER) {
+            socket.close();
+            return null;
+        }
+        WireCodec.writeSignedKey(out, signedKey);
+        out.flush();
+        Security.SignedKey signed = WireCodec.readSignedKey(in);
+        if (!Security.verifyTrustedSigned(signed)) {
+            Logger.getLogger(Replicator.class.getName()).log(Level.WARNING, "Standby cannot be trusted! Refuse connection!");
+            socket.close();
+            return null;
+        }
+        SecretKey sessionKey = Security.ECDHKeyAgreement(in, out, signed.getKey(), privKey);
+        return new Replicator(socket, in, out, sessionKey);
+    }
+
+    //the snapshot covers everything up to and including seq, later appends must use higher numbers
+    public void start(long seq, byte[] snapshot) {
+        outbound.add(new Frame(RequestCode.STANDBY_REGISTER, seq, snapshot));
+    }
+
+    public void append(int code, long seq, byte[] payload) {
+        if (closed) {
+            return;
+        }
+        outbound.add(new Frame(code, seq, payload));
+    }
+
+    //true once the standby has applied seq, false if it didn't within timeoutMillis or is gone
+    public synchronized boolean awaitAck(long seq, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long wait;
+        while (acked < seq && !closed && (wait = deadline - System.currentTimeMillis()) > 0) {
+            wait(wait);
+        }
+        return acked >= seq;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            Logger.getLogger(Replicator.class.getName()).log(Level.FINE, null, ex);
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    //the acks come in on their own thread
+    public Runnable acknowledgements() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (WireCodec.readHeaderOrEnd(in) == RequestCode.REPLICA_ACK) {
+                        long seq = ByteBuffer.wrap(Security.AESDecrypt(sessionKey, WireCodec.readBytes(in))).getLong();
+                        synchronized (Replicator.this) {
+                            acked = Math.max(acked, seq);
+                            Replicator.this.notifyAll();
+                        }
+                    }
+                } catch (IOException ex) {
+                    if (!closed) {
+                        Logger.getLogger(Replicator.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                } finally {
+                    close();
+                }
+            }
+        };
+    }
+
+    //writes everything queued, one flush per burst -- a heartbeat when there has been nothing for a while
+    @Override
+    public void run() {
+        long written = 0; //a heartbeat repeats the last seq WRITTEN, the standby acks it
+        try {
+            while (!closed) {
+                Frame frame = outbound.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    frame = new Frame(RequestCode.REPLICA_HEARTBEAT, written, new byte[0]);
+                }
+                do {
+                    write(frame);
+                    written = frame.seq;
+                } while ((frame = outbound.poll()) != null);
+                out.flush();
+            }
+        } catch (IOException ex) {
+            if (!closed) {
+                Logger.getLogger(Replicator.class.getName()).log(Level.SEVERE, "Lost the standby", ex);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    private void write(Frame frame) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + frame.payload.length);
+        buffer.putLong(frame.seq);
+        buffer.put(frame.payload);
+        WireCodec.writeHeader(out, frame.code);
+        WireCodec.writeBytes(out, Security.AESEncrypt(sessionKey, buffer.array()));
+    }
+
+    private static class Frame {
+        final int code;
+        final long seq;
+        final byte[] payload;
+
+        private Frame(int code, long seq, byte[] payload) {
+            this.code = code;
+            this.seq = seq;
+            this.payload = payload;
+        }
+    }
+}
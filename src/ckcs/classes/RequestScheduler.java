@@ -0,0 +1,146 @@
+package ckcs.classes;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Admission and scheduling for the controller's member requests -- leaves, joins and messages each get a LANE
+//with its own bounded queue and weight, so a flood of messages can't starve the leaves (every leave is a rekey)
+//a full lane SHEDS the request instead of queueing it, the handler then sends the member an explicit reject
+//at most maxRunning requests run at once on the executor, messages never take the last reservedForRekeys of them
+//-- a message blocked on a full MessageRelay holds its runner, a join or leave must still find one
+//while every lane has work, lanes are served weighted round robin: weights[lane] requests in a row per turn
+public class RequestScheduler {
+
+    public enum Lane { LEAVE, JOIN, MESSAGE }
+
+    public static final int[] DEFAULT_WEIGHTS = {8, 4, 1};
+    public static final int[] DEFAULT_CAPACITIES = {4096, 1024, 1024};
+    //joins wait on their join batch, enough of them must be in flight at once for batches to fill
+    public static final int DEFAULT_MAX_RUNNING = 256;
+    public static final int DEFAULT_RESERVED_FOR_REKEYS = 16;
+
+    final private ExecutorService executor;
+    final private List<ArrayDeque<Runnable>> queues; //by lane ordinal, guarded by this
+    final private int[] weights;
+    final private int[] capacities;
+    final private int maxRunning;
+    final private int reservedForRekeys;
+    final private AtomicLong[] shed;
+    private int running;
+    private int runningMessages;
+    private int lane; //round robin position
+    private int credit; //requests the current lane may still start this turn
+
+    public RequestScheduler(ExecutorService executor) {
+        this(executor, DEFAULT_WEIGHTS, DEFAULT_CAPACITIES, DEFAULT_MAX_RUNNING, DEFAULT_RESERVED_FOR_REKEYS);
+    }
+
+    public RequestScheduler(ExecutorService executor, int[] weights, int[] capacities, int maxRunning,
+            int reservedForRekeys) {
+        if (maxRunning <= reservedForRekeys)
+            throw new IllegalArgumentException("maxRunning must be more than reservedForRekeys");
+        this.executor = executor;
+        this.weights = weights.clone();
+        this.capacities = capacities.clone();
+        this.maxRunning = maxRunning;
+        this.reservedForRekeys = reservedForRekeys;
+        this.queues = new ArrayList<>();
+        this.shed = new AtomicLong[Lane.values().length];
+        for (int i = 0; i < shed.length; i++) {
+            queues.add(new ArrayDeque<Runnable>());
+            shed[i] = new AtomicLong();
+        }
+        this.credit = weights[0];
+    }
+
+    //false if the lane is full -- the request is shed, nothing was queued
+    public boolean offer(Lane lane, Runnable request) {
+        synchronized (this) {
+            ArrayDeque<Runnable> queue = queues.get(lane.ordinal());
+            if (queue.size() >= capacities[lane.ordinal()]) {
+                shed[lane.ordinal()].incrementAndGet();
+                return false;
+            }
+            queue.add(request);
+            if (running >= maxRunning) {
+                return true; //a runner will get to it
+            }
+            running++;
+        }
+        executor.execute(new Runner());
+        return true;
+    }
+
+    public long getShed(Lane lane) {
+        return shed[lane.ordinal()].get();
+    }
+
+    public synchronized int getQueued() {
+        int queued = 0;
+        for (ArrayDeque<Runnable> queue : queues) {
+            queued += queue.size();
+        }
+        return queued;
+    }
+
+    //the next request to run by weighted round robin, null if there is none this runner may take
+    private synchronized Task next() {
+        int lanes = queues.size();
+        for (int tried = 0; tried <= lanes; tried++) {
+            if (credit > 0 && !queues.get(lane).isEmpty() && mayRun(lane)) {
+                credit--;
+                if (lane == Lane.MESSAGE.ordinal()) {
+                    runningMessages++;
+                }
+                return new Task(lane, queues.get(lane).poll());
+            }
+            lane = (lane + 1) % lanes;
+            credit = weights[lane];
+        }
+        return null;
+    }
+
+    private boolean mayRun(int lane) {
+        return lane != Lane.MESSAGE.ordinal() || runningMessages < maxRunning - reservedForRekeys;
+    }
+
+    private synchronized void finished(Task task) {
+        if (task.lane == Lane.MESSAGE.ordinal()) {
+            runningMessages--;
+        }
+    }
+
+    private static class Task {
+        final int lane;
+        final Runnable request;
+
+        private Task(int lane, Runnable request) {
+            this.lane = lane;
+            this.request = request;
+        }
+    }
+
+    private class Runner implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                Task task;
+                synchronized (RequestScheduler.this) { //so offer sees this runner as gone once it has stopped
+                    task = next();
+                    if (task == null) {
+                        running--;
+                        return;
+                    }
+                }
+                try {
+                    task.request.run();
+                } finally {
+                    finished(task);
+                }
+            }
+        }
+    }
+}
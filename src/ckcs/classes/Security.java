@@ -6,9 +6,6 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
@@ -21,15 +18,16 @@ import java.security.NoSuchAlgorithmException;
 import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.SecureRandom;
 import java.security.Signature;
 import java.security.SignatureException;
-import java.security.SignedObject;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.BadPaddingException;
@@ -37,6 +35,7 @@ import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyAgreement;
 import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
@@ -52,6 +51,8 @@ public class Security {
     private volatile static PrivateKey TrustedPrivate;
     private volatile static PublicKey TrustedPublic;
     private static final String DIRECTORY = Paths.get("").toAbsolutePath().normalize().toString() + "\\";
+    private static final SecureRandom random = new SecureRandom();
+    private static final AtomicLong aesOperations = new AtomicLong(); //for the metrics, every encrypt + decrypt
         
     private static void generateTrustedKeyPair() {
         KeyPair keyPair = generateKeyPair();
@@ -88,29 +89,40 @@ public class Security {
         }
     }
     
-    public synchronized static SignedObject obtainTrustedSigned(Serializable object) {
+    //signs the raw X.509 encoding of the key with TrustedPrivate -- sent on the wire as-is, see WireCodec
+    public synchronized static SignedKey obtainTrustedSigned(PublicKey key) {
         try {
             if (TrustedPrivate == null) {
                 readTrustedKeyPair();
             }
+            byte[] encoded = key.getEncoded();
             Signature signature = Signature.getInstance("SHA1withRSA");
-            return new SignedObject(object, TrustedPrivate, signature);            
-        } catch (NoSuchAlgorithmException | IOException | InvalidKeyException | SignatureException ex) {
+            signature.initSign(TrustedPrivate);
+            signature.update(encoded);
+            return new SignedKey(encoded, signature.sign());
+        } catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException ex) {
             Logger.getLogger(Security.class.getName()).log(Level.SEVERE, null, ex);
         }
         return null;
     }
     
-    public static boolean verifyTrustedSigned(SignedObject signed) {
+    public static boolean verifyTrustedSigned(SignedKey signed) {
         try {
             Signature signature = Signature.getInstance("SHA1withRSA");
-            return signed.verify(TrustedPublic, signature);
+            signature.initVerify(TrustedPublic);
+            signature.update(signed.encodedKey);
+            return signature.verify(signed.signature);
         } catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException ex) {
             Logger.getLogger(Security.class.getName()).log(Level.SEVERE, null, ex);
         }
         return false;        
     }
     
+    //fixed-width nonce for the join/leave handshakes
+    public static int generateNonce() {
+        return random.nextInt();
+    }
+    
     public static byte[] RSAEncrypt(final Key key, byte[] message) {
         try {
             Cipher cipher = Cipher.getInstance("RSA");
@@ -155,30 +167,51 @@ public class Security {
         return null;
     }
 
-    public static SecretKey ECDHKeyAgreement(final ObjectInputStream in, final ObjectOutputStream out,
+    public static SecretKey ECDHKeyAgreement(final DataInputStream in, final DataOutputStream out,
             final PublicKey otherPub, final PrivateKey privKey) {
             //is a BLOCKING function, two users must both confirm to begin before calling this function
             //must be called on both ends after confirmations received
             //include some sort of authentication between users, such as ID, Nonces, Certificates? -- prevent man-in-the-middle/replays
+        try {
+            ECDHState state = ECDHStart(otherPub);
+            WireCodec.writeBytes(out, state.encryptedPubKey);
+            out.flush();
+            return ECDHFinish(state, privKey, WireCodec.readBytes(in));
+        } catch (IOException ex) {
+            Logger.getLogger(Security.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+    
+    //ECDHKeyAgreement split around its one blocking exchange, so a caller can run the CPU heavy halves
+    //(EC keygen + RSA encrypt, then RSA decrypt + agreement) somewhere else than the thread doing the I/O
+    //send state.getEncryptedPubKey() to the other side, then pass what it sent back to ECDHFinish
+    public static ECDHState ECDHStart(final PublicKey otherPub) {
+        TraceEvent event = TraceEvent.begin(TraceEvent.Type.ECDH_START);
         try {
             KeyPairGenerator keyPairGen = KeyPairGenerator.getInstance("EC");
             keyPairGen.initialize(128);
             KeyPair keyPair = keyPairGen.genKeyPair();
             byte[] ourPubKeyBytes = keyPair.getPublic().getEncoded();
-            byte[] buffer = RSAEncrypt(otherPub, ourPubKeyBytes);
-            int length = buffer.length;
-            out.writeInt(length);
-            out.write(buffer);
-            out.flush();
-            
-            length = in.readInt();
-            buffer = new byte[length];
-            in.readFully(buffer);
-            byte[] otherPubKeyBytes = RSADecrypt(privKey, buffer);
+            return new ECDHState(keyPair, ourPubKeyBytes, RSAEncrypt(otherPub, ourPubKeyBytes));
+        } catch (NoSuchAlgorithmException ex) {
+            Logger.getLogger(Security.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            event.commit();
+        }
+        return null;
+    }
+    
+    public static SecretKey ECDHFinish(final ECDHState state, final PrivateKey privKey, final byte[] otherEncrypted) {
+        TraceEvent event = TraceEvent.begin(TraceEvent.Type.ECDH_FINISH);
+        event.setPayloadBytes(otherEncrypted.length);
+        try {
+            byte[] ourPubKeyBytes = state.ourPubKeyBytes;
+            byte[] otherPubKeyBytes = RSADecrypt(privKey, otherEncrypted);
             PublicKey otherPubKey = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(otherPubKeyBytes));
             
             KeyAgreement keyAgree = KeyAgreement.getInstance("ECDH");
-            keyAgree.init(keyPair.getPrivate());
+            keyAgree.init(state.keyPair.getPrivate());
             keyAgree.doPhase(otherPubKey, true);
             byte[] sharedKeyBytes = keyAgree.generateSecret();
             
@@ -191,34 +224,70 @@ public class Security {
             byte[] secretKeyBytes = md.digest();
             
             return new SecretKeySpec(secretKeyBytes, "AES");
-        } catch (NoSuchAlgorithmException | IOException | InvalidKeySpecException | InvalidKeyException ex) {
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException | InvalidKeyException ex) {
             Logger.getLogger(Security.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            event.commit();
         }
         return null;
     }
 
+    public static long getAESOperations() {
+        return aesOperations.get();
+    }
+
     public static byte[] AESDecrypt(final SecretKey key, final byte[] input) {
+        aesOperations.incrementAndGet();
+        TraceEvent event = TraceEvent.begin(TraceEvent.Type.AES_DECRYPT);
+        event.setPayloadBytes(input.length);
         try {
             Cipher cipher = Cipher.getInstance("AES");
             cipher.init(Cipher.DECRYPT_MODE, key);
             return cipher.doFinal(input);
         } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException ex) {
             Logger.getLogger(Security.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            event.commit();
         }
         return null;
     }
 
     public static byte[] AESEncrypt(final SecretKey key, final byte[] input) {
+        aesOperations.incrementAndGet();
+        TraceEvent event = TraceEvent.begin(TraceEvent.Type.AES_ENCRYPT);
+        event.setPayloadBytes(input.length);
         try {
             Cipher cipher = Cipher.getInstance("AES");
             cipher.init(Cipher.ENCRYPT_MODE, key);
             return cipher.doFinal(input);
         } catch (InvalidKeyException | NoSuchAlgorithmException | NoSuchPaddingException | IllegalBlockSizeException | BadPaddingException ex) {
             Logger.getLogger(Security.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            event.commit();
         }
         return null;
     }
 
+    //HmacSHA256 under a key derived from key, so the same AES key can also authenticate what it encrypted
+    public static byte[] HMAC(final SecretKey key, final byte[] input) {
+        try {
+            byte[] encoded = key.getEncoded();
+            byte[] derived = Arrays.copyOf(encoded, encoded.length + 3);
+            System.arraycopy("mac".getBytes(StandardCharsets.UTF_8), 0, derived, encoded.length, 3);
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(hashFunction(derived), "HmacSHA256"));
+            return mac.doFinal(input);
+        } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+            Logger.getLogger(Security.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
+    public static boolean verifyHMAC(final SecretKey key, final byte[] input, final byte[] expected) {
+        byte[] actual = HMAC(key, input);
+        return actual != null && MessageDigest.isEqual(actual, expected);
+    }
+
     public static SecretKey generateRandomKey() {
         try {
             KeyGenerator keyGen = KeyGenerator.getInstance("AES");
@@ -241,6 +310,24 @@ public class Security {
         
     }
 
+    //STRIPES -- a stripe's root key, the GK mixed with a secret only the stripe's members hold
+    //unlike a middle key it can't be rebuilt from the GK and a (public) node code by a member of another stripe
+    public static SecretKey stripeKeyCalculation(final SecretKey groupKey, final SecretKey stripeSecret) {
+        return new SecretKeySpec(hashFunction(concat(groupKey.getEncoded(), stripeSecret.getEncoded())), "AES");
+    }
+    
+    //a stripe's secret after a leave rekey, mixed with the NEW GK -- a member that just left never gets it,
+    //so the secret it held is of no use from then on
+    public static SecretKey nextStripeSecret(final SecretKey stripeSecret, final SecretKey groupKey) {
+        return new SecretKeySpec(hashFunction(concat(stripeSecret.getEncoded(), groupKey.getEncoded())), "AES");
+    }
+    
+    private static byte[] concat(final byte[] first, final byte[] second) {
+        byte[] joined = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        return joined;
+    }
+    
     public static SecretKey middleKeyCalculation(final SecretKey groupKey, final String nodeNumber) {
         byte[] keyBytes = groupKey.getEncoded();
         byte[] number = nodeNumber.getBytes(StandardCharsets.UTF_8);
@@ -252,4 +339,50 @@ public class Security {
         }
         return new SecretKeySpec(keyBytes, "AES");
     }
+    
+    //a public key plus the trusted third-party's signature over its X.509 encoding
+    public static class SignedKey {
+        private final byte[] encodedKey;
+        private final byte[] signature;
+        
+        public SignedKey(byte[] encodedKey, byte[] signature) {
+            this.encodedKey = encodedKey;
+            this.signature = signature;
+        }
+        
+        public byte[] getEncodedKey() {
+            return encodedKey;
+        }
+        
+        public byte[] getSignature() {
+            return signature;
+        }
+        
+        //only call after verifyTrustedSigned
+        public PublicKey getKey() {
+            try {
+                return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encodedKey));
+            } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
+                Logger.getLogger(Security.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            return null;
+        }
+    }
+    
+    //our half of an ECDH agreement between ECDHStart and ECDHFinish
+    public static class ECDHState {
+        private final KeyPair keyPair;
+        private final byte[] ourPubKeyBytes;
+        private final byte[] encryptedPubKey;
+        
+        private ECDHState(KeyPair keyPair, byte[] ourPubKeyBytes, byte[] encryptedPubKey) {
+            this.keyPair = keyPair;
+            this.ourPubKeyBytes = ourPubKeyBytes;
+            this.encryptedPubKey = encryptedPubKey;
+        }
+        
+        public byte[] getEncryptedPubKey() {
+            return encryptedPubKey;
+        }
+    }
 }
\ No newline at end of file
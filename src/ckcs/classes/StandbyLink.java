@@ -0,0 +1,201 @@
+package ckcs.classes;
+
+import ckcs.interfaces.RequestCode;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+//A standby controller's connection to its primary -- the standby's copy of the tree starts from the
+//primary's snapshot and replays the primary's joins and leaves, in order, as they stream in
+//when the primary goes quiet for longer than the primary timeout (or the connection drops) the listener is
+//told to take over -- nothing stops a primary that was only slow from carrying on, so the timeout is kept
+//well above a GC pause or a busy network's worth of silence, and the members fence the old primary off by
+//epoch (see GroupController.FAILOVER_EPOCH_GAP)
+public class StandbyLink implements Runnable {
+
+    public static final long DEFAULT_PRIMARY_TIMEOUT_MILLIS = 3000;
+
+    //called on the link's thread, in the primary's order
+    public interface Listener {
+        void joined(long epoch, List<Joined> batch);
+        void left(long epoch, UUID memberID, SecretKey groupKey);
+        void primaryLost();
+    }
+
+    final private Socket socket;
+    final private DataInputStream in;
+    final private DataOutputStream out;
+    final private SecretKey sessionKey;
+    final private UUID serverID;
+    final private long epoch;
+    final private StripedTree tree;
+    final private List<Joined> members;
+    private Listener listener;
+    private long primaryTimeoutMillis = DEFAULT_PRIMARY_TIMEOUT_MILLIS;
+
+    //connects, registers and reads the snapshot
+    public StandbyLink(InetSocketAddress primary, Security.SignedKey signedKey, PrivateKey privKey) throws IOException {
+        this.socket = new Socket(primary.getAddress(), primary.getPort());
+        socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        WireCodec.writeHeader(out, RequestCode.STANDBY_REGISTER);
+        WireCodec.writeSignedKey(out, signedKey);
+        out.flush();
+        Security.SignedKey signed = WireCodec.readSignedKey(in);
+        if (!Security.verifyTrustedSigned(signed)) {
+            socket.close();
+            throw new IOException("Primary controller cannot be trusted!");
+        }
+        this.sessionKey = Security.ECDHKeyAgreement(in, out, signed.getKey(), privKey);
+        if (WireCodec.readHeader(in) != RequestCode.STANDBY_REGISTER) {
+            socket.close();
+            throw new IOException("Primary controller refused the standby");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Security.AESDecrypt(sessionKey, WireCodec.readBytes(in)));
+        long seq = buffer.getLong();
+        this.serverID = WireCodec.getUUID(buffer);
+        this.epoch = buffer.getLong();
+        byte[] snapshot = new byte[buffer.getInt()];
+        buffer.get(snapshot);
+        this.tree = new StripedTree(snapshot);
+        int count = buffer.getInt();
+        this.members = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            UUID memberID = WireCodec.getUUID(buffer);
+            int port = buffer.getInt();
+            members.add(new Joined(memberID, tree.getMemberKey(memberID), port, WireCodec.getAddress(buffer)));
+        }
+        acknowledge(seq);
+    }
+
+    //the primary's identity and state at the snapshot
+    public UUID getServerID() {
+        return serverID;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public StripedTree getTree() {
+        return tree;
+    }
+
+    public List<Joined> getMembers() {
+        return members;
+    }
+
+    //must be set before the link is run
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    //so must this, at least a few Replicator.HEARTBEAT_MILLIS
+    public void setPrimaryTimeout(long millis) {
+        if (millis < 2 * Replicator.HEARTBEAT_MILLIS) {
+            throw new IllegalArgumentException("Primary timeout must be at least two heartbeats: " + millis);
+        }
+        this.primaryTimeoutMillis = millis;
+    }
+
+    private void acknowledge(long seq) throws IOException {
+        WireCodec.writeHeader(out, RequestCode.REPLICA_ACK);
+        WireCodec.writeBytes(out, Security.AESEncrypt(sessionKey, ByteBuffer.allocate(8).putLong(seq).array()));
+        out.flush();
+    }
+
+    @Override
+    public void run() {
+        try {
+            socket.setSoTimeout((int) primaryTimeoutMillis);
+            int code;
+            while ((code = WireCodec.readHeaderOrEnd(in)) != -1) {
+                ByteBuffer buffer = ByteBuffer.wrap(Security.AESDecrypt(sessionKey, WireCodec.readBytes(in)));
+                long seq = buffer.getLong();
+                switch (code) {
+                    case RequestCode.REPLICA_JOIN: {
+                        long next = buffer.getLong();
+                        int count = buffer.getInt();
+                        List<Joined> batch = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            UUID memberID = WireCodec.getUUID(buffer);
+                            byte[] key = new byte[buffer.getInt()];
+                            buffer.get(key);
+                            int port = buffer.getInt();
+                            batch.add(new Joined(memberID, new SecretKeySpec(key, "AES"), port, WireCodec.getAddress(buffer)));
+                        }
+                        listener.joined(next, batch);
+                        break;
+                    }
+                    case RequestCode.REPLICA_LEAVE: {
+                        long next = buffer.getLong();
+                        UUID memberID = WireCodec.getUUID(buffer);
+                        byte[] GK = new byte[buffer.remaining()];
+                        buffer.get(GK);
+                        listener.left(next, memberID, new SecretKeySpec(GK, "AES"));
+                        break;
+                    }
+                    default: //REPLICA_HEARTBEAT
+                        break;
+                }
+                acknowledge(seq);
+            }
+            Logger.getLogger(StandbyLink.class.getName()).log(Level.WARNING, "Primary controller closed the connection");
+        } catch (IOException ex) {
+            Logger.getLogger(StandbyLink.class.getName()).log(Level.WARNING, "Lost the primary controller: {0}", ex.toString());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                Logger.getLogger(StandbyLink.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+        listener.primaryLost();
+    }
+
+    //a member as the standby learns it -- from the snapshot or a replicated join
+    public static class Joined {
+        private final UUID memberID;
+        private final SecretKey key;
+        private final int port;
+        private final InetAddress address;
+
+        public Joined(UUID memberID, SecretKey key, int port, InetAddress address) {
+            this.memberID = memberID;
+            this.key = key;
+            this.port = port;
+            this.address = address;
+        }
+
+        public UUID getMemberID() {
+            return memberID;
+        }
+
+        public SecretKey getKey() {
+            return key;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public InetAddress getAddress() {
+            return address;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package ckcs.classes;
+
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//Hands state snapshots to any number of subscribers OFF the publishing thread -- publish() never blocks and never
+//runs subscriber code, so a controller can publish while holding its lock
+//a subscriber gets the snapshots on one delivery thread at a time, in the order they were published
+//by default it is COALESCED: while it is busy newer snapshots replace the one waiting, it only ever sees the latest
+//-- a slow UI falls behind by one snapshot, not by a queue. everyUpdate subscribers (a log of every message)
+//get every snapshot instead, up to MAX_QUEUED behind -- past that new snapshots are dropped for them (see getDropped),
+//a subscriber that can't keep up costs a bounded amount of heap, never the publisher's time
+public class StateBus<T> {
+    
+    public interface Subscriber<T> {
+        public void onState(T snapshot);
+    }
+    
+    //shared by every bus, a thread per subscriber that is being delivered to right now
+    private static final ExecutorService DELIVERY = Executors.newCachedThreadPool(new ThreadFactory() {
+        final AtomicInteger count = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "state-bus-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    //most snapshots queued for an everyUpdate subscriber
+    public static final int MAX_QUEUED = 1024;
+    
+    final private CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    final private AtomicLong dropped = new AtomicLong();
+    
+    public void subscribe(Subscriber<T> subscriber, boolean everyUpdate) {
+        subscriptions.add(new Subscription(subscriber, everyUpdate));
+    }
+    
+    //by equals(), whatever was queued for it is dropped
+    public void unsubscribe(Subscriber<T> subscriber) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.subscriber.equals(subscriber)) {
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+    
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+    
+    //snapshots dropped for everyUpdate subscribers that were MAX_QUEUED behind
+    public long getDropped() {
+        return dropped.get();
+    }
+    
+    //snapshot must not change after this, every subscriber may hold on to it
+    public void publish(T snapshot) {
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(snapshot);
+        }
+    }
+    
+    private class Subscription implements Runnable {
+        final private Subscriber<T> subscriber;
+        final private boolean everyUpdate;
+        final private AtomicReference<T> latest = new AtomicReference<>(); //coalesced
+        final private Queue<T> queue = new LinkedBlockingQueue<>(MAX_QUEUED); //everyUpdate
+        final private AtomicBoolean scheduled = new AtomicBoolean();    //a delivery task is queued or running
+        
+        private Subscription(Subscriber<T> subscriber, boolean everyUpdate) {
+            this.subscriber = subscriber;
+            this.everyUpdate = everyUpdate;
+        }
+        
+        private void offer(T snapshot) {
+            if (everyUpdate) {
+                if (!queue.offer(snapshot)) {
+                    dropped.incrementAndGet();
+                }
+            } else {
+                latest.set(snapshot);
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                DELIVERY.execute(this);
+            }
+        }
+        
+        private T next() {
+            return everyUpdate ? queue.poll() : latest.getAndSet(null);
+        }
+        
+        private boolean pending() {
+            return everyUpdate ? !queue.isEmpty() : latest.get() != null;
+        }
+        
+        @Override
+        public void run() {
+            do {
+                T snapshot;
+                while ((snapshot = next()) != null && subscriptions.contains(this)) {
+                    try {
+                        subscriber.onState(snapshot);
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(StateBus.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+                scheduled.set(false);
+                //a snapshot offered after our last next() but before the reset found us still scheduled
+            } while (pending() && scheduled.compareAndSet(false, true));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package ckcs.classes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.crypto.SecretKey;
+
+//One piece of a streamed group message -- large payloads go out CHUNK_SIZE at a time, each chunk encrypted
+//and authenticated on its own, so neither end ever holds more than a chunk or two of a stream
+//sealed: AES(streamID + index + flags + data) followed by an HMAC over that ciphertext
+//the stream ID and index are inside the ciphertext, a chunk can't be replayed into another stream or position
+public class StreamChunk {
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+    public static final int MAC_LENGTH = 32;
+    //flags
+    public static final byte LAST = 1;    //the stream is complete after this chunk
+    public static final byte ABORTED = 2; //the sender's stream broke off, no data, nothing more will come
+
+    private final long streamID;
+    private final int index;
+    private final byte flags;
+    private final byte[] data;
+
+    public StreamChunk(long streamID, int index, byte flags, byte[] data) {
+        this.streamID = streamID;
+        this.index = index;
+        this.flags = flags;
+        this.data = data;
+    }
+
+    public long getStreamID() {
+        return streamID;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public boolean isLast() {
+        return (flags & (LAST | ABORTED)) != 0;
+    }
+
+    public boolean isAborted() {
+        return (flags & ABORTED) != 0;
+    }
+
+    public byte[] seal(SecretKey key) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 4 + 1 + data.length);
+        buffer.putLong(streamID);
+        buffer.putInt(index);
+        buffer.put(flags);
+        buffer.put(data);
+        byte[] encrypted = Security.AESEncrypt(key, buffer.array());
+        byte[] sealed = Arrays.copyOf(encrypted, encrypted.length + MAC_LENGTH);
+        System.arraycopy(Security.HMAC(key, encrypted), 0, sealed, encrypted.length, MAC_LENGTH);
+        return sealed;
+    }
+
+    public static StreamChunk open(SecretKey key, byte[] sealed) throws IOException {
+        if (sealed.length < MAC_LENGTH) {
+            throw new IOException("Stream chunk too short: " + sealed.length);
+        }
+        byte[] encrypted = Arrays.copyOf(sealed, sealed.length - MAC_LENGTH);
+        if (!Security.verifyHMAC(key, encrypted, Arrays.copyOfRange(sealed, encrypted.length, sealed.length))) {
+            throw new IOException("Stream chunk failed authentication");
+        }
+        byte[] decrypted = Security.AESDecrypt(key, encrypted);
+        if (decrypted == null || decrypted.length < 13) {
+            throw new IOException("Stream chunk could not be decrypted");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(decrypted);
+        long streamID = buffer.getLong();
+        int index = buffer.getInt();
+        byte flags = buffer.get();
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return new StreamChunk(streamID, index, flags, data);
+    }
+}
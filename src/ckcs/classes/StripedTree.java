@@ -0,0 +1,355 @@
+package ckcs.classes;
+
+import ckcs.classes.Exceptions.NoMemberException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.SecretKey;
+
+//The controller's tree split into STRIPES -- independent LogicalTrees under the group's root code, each one
+//digit longer (root 812 -> stripes 8120, 8121, ...), a member's stripe is fixed by its ID
+//a stripe is locked on its own (the LogicalTree's monitor), so the joins and leaves of a batch are put into
+//the tree one task per stripe, at the same time
+//the GK COMMIT is a separate step, after the structural edits: a stripe a leave touched sends the new GK under
+//the middle keys of its members' paths, as one tree would, every other stripe sends it ONCE under its root key
+//-- the same as a leave on another node of a cluster, see LogicalTree(String rootCode)
+//a stripe's root key is NOT a middle key: stripe codes are public (root + digit) and a member that left has the
+//old GK, so it is mixed with a secret only the stripe's members hold, see Security.stripeKeyCalculation
+//every commit moves each secret on with the new GK, a member that left can't follow its old stripe's secret
+public class StripedTree {
+
+    public static final int MAX_STRIPES = 10; //one digit of code
+    public static final int DEFAULT_STRIPES = Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors());
+
+    final private String rootCode;
+    final private LogicalTree[] stripes;
+    final private boolean[] exposed; //a leave since the last commit, guarded by the stripe
+    final private SecretKey[] secrets; //each stripe's secret, guarded by the stripe
+    private volatile SecretKey groupKey;
+
+    public StripedTree(int numberOfCodeDigits, int stripes) {
+        this(randomCode(numberOfCodeDigits), stripes);
+    }
+
+    //CLUSTER -- rootCode is the node's subtree, handed out by the coordinator
+    public StripedTree(String rootCode, int stripes) {
+        if (stripes < 1 || stripes > MAX_STRIPES)
+            throw new IllegalArgumentException("Between 1 and " + MAX_STRIPES + " stripes");
+        this.rootCode = rootCode;
+        this.stripes = new LogicalTree[stripes];
+        this.exposed = new boolean[stripes];
+        this.secrets = new SecretKey[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new LogicalTree(rootCode + i);
+            this.secrets[i] = Security.generateRandomKey();
+        }
+    }
+
+    //STANDBY -- rebuilds every stripe as it was when snapshot() was called on the primary
+    //the secrets are NOT in the snapshot, the standby starts with new ones and hands them out when it takes over
+    public StripedTree(byte[] snapshot) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(snapshot);
+        this.rootCode = WireCodec.getString(buffer);
+        int count = buffer.getInt();
+        if (count < 1 || count > MAX_STRIPES) {
+            throw new IOException("Snapshot has " + count + " stripes");
+        }
+        this.stripes = new LogicalTree[count];
+        this.exposed = new boolean[count];
+        this.secrets = new SecretKey[count];
+        for (int i = 0; i < count; i++) {
+            secrets[i] = Security.generateRandomKey();
+            exposed[i] = buffer.get() == 1;
+            byte[] stripe = new byte[buffer.getInt()];
+            buffer.get(stripe);
+            stripes[i] = new LogicalTree(stripe);
+        }
+        this.groupKey = stripes[0].getGroupKey();
+    }
+
+    //STANDBY -- every stripe re-seeded from seed, the standby starts from the same seeds
+    public byte[] snapshot(long seed) {
+        List<byte[]> snapshots = new ArrayList<>(stripes.length);
+        int size = WireCodec.stringSize(rootCode) + 4;
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                snapshots.add(stripes[i].snapshot(seed + i));
+            }
+            size += 1 + 4 + snapshots.get(i).length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        WireCodec.putString(buffer, rootCode);
+        buffer.putInt(stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                buffer.put((byte)(exposed[i] ? 1 : 0));
+            }
+            buffer.putInt(snapshots.get(i).length);
+            buffer.put(snapshots.get(i));
+        }
+        return buffer.array();
+    }
+
+    private static String randomCode(int digits) {
+        int lowest = (int)Math.pow(10, digits - 1);
+        return Integer.toString(lowest + new Random().nextInt(9 * lowest));
+    }
+
+    private int stripeOf(UUID memberId) {
+        return (memberId.hashCode() & Integer.MAX_VALUE) % stripes.length;
+    }
+
+    private LogicalTree stripe(UUID memberId) {
+        return stripes[stripeOf(memberId)];
+    }
+
+    public SecretKey getMemberKey(UUID memberId) {
+        return stripe(memberId).getMemberKey(memberId);
+    }
+
+    public SecretKey getGroupKey() {
+        return groupKey;
+    }
+
+    public void setGroupKey(SecretKey key) {
+        for (LogicalTree stripe : stripes) {
+            synchronized (stripe) {
+                stripe.setGroupKey(key);
+            }
+        }
+        this.groupKey = key;
+    }
+
+    public String getParentCode(UUID memberId) {
+        return stripe(memberId).getParentCode(memberId);
+    }
+    
+    //the secret of the member's stripe as of now, sent with its GK on join and on failover
+    public SecretKey getStripeSecret(UUID memberId) {
+        int index = stripeOf(memberId);
+        synchronized (stripes[index]) {
+            return secrets[index];
+        }
+    }
+
+    public String announceParentCode(UUID memberId) {
+        return stripe(memberId).announceParentCode(memberId);
+    }
+
+    public void resendParentCode(UUID memberId) {
+        stripe(memberId).resendParentCode(memberId);
+    }
+
+    //the group's code, a prefix of every stripe's
+    public String getRootCode() {
+        return rootCode;
+    }
+
+    //the root code a member is given on join -- its stripe's, the member never needs to know it is striped
+    public String getRootCode(UUID memberId) {
+        return stripe(memberId).getRootCode();
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    public int getExposedCount() {
+        int count = 0;
+        for (LogicalTree stripe : stripes) {
+            count += stripe.getExposedCount();
+        }
+        return count;
+    }
+
+    public int getDepth() {
+        int depth = 0;
+        for (LogicalTree stripe : stripes) {
+            synchronized (stripe) {
+                depth = Math.max(depth, stripe.getDepth());
+            }
+        }
+        return depth;
+    }
+
+    //members under a middle node -- it is in at most one stripe, a code shorter than a stripe's is not a node
+    public List<UUID> membersUnder(String nodeCode) {
+        for (LogicalTree stripe : stripes) {
+            if (nodeCode.startsWith(stripe.getRootCode())) {
+                return stripe.membersUnder(nodeCode);
+            }
+        }
+        return new ArrayList<>();
+    }
+
+    public void add(UUID memberId, SecretKey key) {
+        stripe(memberId).add(memberId, key);
+    }
+
+    public void remove(UUID memberId) throws NoMemberException {
+        int index = stripeOf(memberId);
+        synchronized (stripes[index]) {
+            stripes[index].remove(memberId);
+            exposed[index] = true;
+        }
+    }
+
+    //a join batch, in order within each stripe
+    public void addAll(final Map<UUID, SecretKey> members, ExecutorService pool) {
+        List<List<UUID>> byStripe = byStripe(members.keySet());
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (final List<UUID> ids : byStripe) {
+            if (!ids.isEmpty()) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (UUID id : ids) {
+                            add(id, members.get(id));
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+        runAll(tasks, pool);
+    }
+
+    //a leave batch, in order within each stripe -- returns the members that were in the tree
+    public List<UUID> removeAll(List<UUID> members, ExecutorService pool) {
+        List<List<UUID>> byStripe = byStripe(members);
+        List<Callable<List<UUID>>> tasks = new ArrayList<>();
+        for (final List<UUID> ids : byStripe) {
+            if (!ids.isEmpty()) {
+                tasks.add(new Callable<List<UUID>>() {
+                    @Override
+                    public List<UUID> call() {
+                        List<UUID> removed = new ArrayList<>();
+                        for (UUID id : ids) {
+                            try {
+                                remove(id);
+                                removed.add(id);
+                            } catch (NoMemberException ex) {
+                                Logger.getLogger(StripedTree.class.getName()).log(Level.SEVERE, null, ex);
+                            }
+                        }
+                        return removed;
+                    }
+                });
+            }
+        }
+        List<UUID> removed = new ArrayList<>();
+        for (List<UUID> ids : runAll(tasks, pool)) {
+            removed.addAll(ids);
+        }
+        return removed;
+    }
+
+    //the GK commit after a leave batch (or a leave on another cluster node) -- the KEY_UPDATE_LEAVE body for every
+    //member in the tree, one task per stripe: the stripes with a leave since the last commit encrypt groupKey per
+    //member under the safe middle keys of its path, the others once under the stripe's root key
+    //middle and root keys come from the GK being replaced, so this MUST run before the new one is set
+    public Map<UUID, byte[]> commitGroupKey(final SecretKey groupKey, ExecutorService pool) {
+        List<Callable<Map<UUID, byte[]>>> tasks = new ArrayList<>();
+        for (int i = 0; i < stripes.length; i++) {
+            final int index = i;
+            tasks.add(new Callable<Map<UUID, byte[]>>() {
+                @Override
+                public Map<UUID, byte[]> call() {
+                    return commitStripe(index, groupKey);
+                }
+            });
+        }
+        Map<UUID, byte[]> encrypted = new LinkedHashMap<>();
+        for (Map<UUID, byte[]> stripe : runAll(tasks, pool)) {
+            encrypted.putAll(stripe);
+        }
+        this.groupKey = groupKey;
+        return encrypted;
+    }
+
+    private Map<UUID, byte[]> commitStripe(int index, SecretKey groupKey) {
+        LogicalTree stripe = stripes[index];
+        Map<UUID, byte[]> encrypted = new LinkedHashMap<>();
+        synchronized (stripe) {
+            List<UUID> members = stripe.membersUnder(stripe.getRootCode());
+            try {
+                if (exposed[index]) {
+                    stripe.refreshMiddleKeys();
+                    stripe.setGroupKey(groupKey);
+                    for (UUID id : members) {
+                        encrypted.put(id, stripe.encryptGKForMember(id));
+                    }
+                    exposed[index] = false;
+                } else {
+                    byte[] rootEncryptedGK = null;
+                    if (!members.isEmpty()) {
+                        SecretKey rootKey = Security.stripeKeyCalculation(stripe.getGroupKey(), secrets[index]);
+                        rootEncryptedGK = Security.AESEncrypt(rootKey, groupKey.getEncoded());
+                    }
+                    stripe.setGroupKey(groupKey);
+                    for (UUID id : members) {
+                        encrypted.put(id, stripe.encryptGKUnderRoot(id, rootEncryptedGK));
+                    }
+                }
+                secrets[index] = Security.nextStripeSecret(secrets[index], groupKey);
+            } catch (NoMemberException ex) { //members came from the stripe itself, under its lock
+                Logger.getLogger(StripedTree.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return encrypted;
+    }
+
+    private List<List<UUID>> byStripe(Iterable<UUID> members) {
+        List<List<UUID>> byStripe = new ArrayList<>(stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            byStripe.add(new ArrayList<UUID>());
+        }
+        for (UUID id : members) {
+            byStripe.get(stripeOf(id)).add(id);
+        }
+        return byStripe;
+    }
+
+    //one task runs on the caller's thread, more go to the pool -- the caller waits for all of them
+    private static <T> List<T> runAll(List<Callable<T>> tasks, ExecutorService pool) {
+        List<T> results = new ArrayList<>(tasks.size());
+        try {
+            if (tasks.size() == 1) {
+                results.add(tasks.get(0).call());
+                return results;
+            }
+            for (Future<T> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof RuntimeException ? (RuntimeException)ex.getCause()
+                    : new IllegalStateException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        } catch (Exception ex) {
+            throw ex instanceof RuntimeException ? (RuntimeException)ex : new IllegalStateException(ex);
+        }
+        return results;
+    }
+
+    @Override
+    public String toString() {
+        int members = 0;
+        for (LogicalTree stripe : stripes) {
+            members += stripe.getMemberCount();
+        }
+        return "members: " + members + "  stripes: " + stripes.length;
+    }
+}
@@ -0,0 +1,77 @@
+package ckcs.classes;
+
+import ckcs.interfaces.Transport;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+//a TCP connection per Transport.Connection, a ServerSocket per listener
+public class TcpTransport implements Transport {
+    
+    @Override
+    public Listener listen(int port) throws IOException {
+        final ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        return new Listener() {
+            @Override
+            public Connection accept() throws IOException {
+                return new TcpConnection(server.accept());
+            }
+            
+            @Override
+            public void close() throws IOException {
+                server.close();
+            }
+        };
+    }
+    
+    @Override
+    public Connection connect(InetAddress address, int port, int timeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, port), timeoutMillis);
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        return new TcpConnection(socket);
+    }
+    
+    private static class TcpConnection implements Connection {
+        final private Socket socket;
+        private DataOutputStream out;
+        private DataInputStream in;
+        
+        private TcpConnection(Socket socket) {
+            this.socket = socket;
+        }
+        
+        @Override
+        public synchronized DataOutputStream getOutput() throws IOException {
+            if (out == null) {
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            }
+            return out;
+        }
+        
+        @Override
+        public synchronized DataInputStream getInput() throws IOException {
+            if (in == null) {
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            }
+            return in;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package ckcs.classes;
+
+//A member's message rate limit -- up to burst requests at once, refilled at perSecond
+public class TokenBucket {
+
+    final private double perSecond;
+    final private double burst;
+    private double tokens;
+    private long refilled; //nanoTime
+
+    public TokenBucket(double perSecond, int burst) {
+        this.perSecond = perSecond;
+        this.burst = burst;
+        this.tokens = burst;
+        this.refilled = System.nanoTime();
+    }
+
+    //takes a token if there is one
+    public synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilled) / 1e9 * perSecond);
+        refilled = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+}
@@ -0,0 +1,137 @@
+package ckcs.classes;
+
+import ckcs.interfaces.TraceSink;
+
+//Flight-recorder style events for key tree and rekey activity -- begin() before the work, fill in the fields,
+//commit() after it, and the event goes to the installed TraceSink with its duration
+//with no sink installed begin() hands back one shared disabled event: no clock read, no allocation,
+//so the calls can stay in the hot paths (every AES operation) for good
+//there is no jdk.jfr on Java 7 -- on JDK 11+ a sink that copies these into jdk.jfr.Event subclasses
+//puts them in a flight recording, next to the GC and socket events
+//-Dckcs.trace=<file> starts a TraceRecorder at startup and dumps it to <file> on exit
+public final class TraceEvent {
+    
+    public enum Type {
+        TREE_ADD,           //LogicalTree.add
+        TREE_REMOVE,        //LogicalTree.remove
+        ENCRYPT_GK,         //LogicalTree.encryptGKForMember
+        REKEY_FAN_OUT,      //new GK encrypted and queued for every member after a leave
+        AES_ENCRYPT,
+        AES_DECRYPT,
+        ECDH_START,         //EC keygen + RSA encrypt of our half
+        ECDH_FINISH         //RSA decrypt of their half + the agreement
+    }
+    
+    //the setters leave it alone -- every thread gets it, a write from each would bounce its cache line between cores
+    private static final TraceEvent DISABLED = new TraceEvent(null, 0);
+    private static volatile TraceSink sink;
+    
+    static {
+        String file = System.getProperty("ckcs.trace");
+        if (file != null && !file.isEmpty()) {
+            TraceRecorder.dumpOnExit(file);
+        }
+    }
+    
+    final private Type type;
+    final private long start; //System.nanoTime()
+    private long duration;
+    //-1 where the event has nothing to say
+    private int memberCount = -1;
+    private int pathLength = -1;   //middle nodes between the member and the root
+    private int exposedNodes = -1; //middle nodes a leave left unusable for the rekey
+    private int payloadBytes = -1;
+    
+    private TraceEvent(Type type, long start) {
+        this.type = type;
+        this.start = start;
+    }
+    
+    public static void setSink(TraceSink traceSink) {
+        sink = traceSink;
+    }
+    
+    public static TraceSink getSink() {
+        return sink;
+    }
+    
+    public static boolean isEnabled() {
+        return sink != null;
+    }
+    
+    public static TraceEvent begin(Type type) {
+        if (sink == null) {
+            return DISABLED;
+        }
+        return new TraceEvent(type, System.nanoTime());
+    }
+    
+    public void commit() {
+        if (this == DISABLED) {
+            return;
+        }
+        duration = System.nanoTime() - start;
+        TraceSink current = sink; //may have been removed since begin()
+        if (current != null) {
+            current.commit(this);
+        }
+    }
+    
+    public void setMemberCount(int memberCount) {
+        if (this != DISABLED) {
+            this.memberCount = memberCount;
+        }
+    }
+    
+    public void setPathLength(int pathLength) {
+        if (this != DISABLED) {
+            this.pathLength = pathLength;
+        }
+    }
+    
+    public void setExposedNodes(int exposedNodes) {
+        if (this != DISABLED) {
+            this.exposedNodes = exposedNodes;
+        }
+    }
+    
+    public void setPayloadBytes(int payloadBytes) {
+        if (this != DISABLED) {
+            this.payloadBytes = payloadBytes;
+        }
+    }
+    
+    public Type getType() {
+        return type;
+    }
+    
+    public long getStartNanos() {
+        return start;
+    }
+    
+    public long getDurationNanos() {
+        return duration;
+    }
+    
+    public int getMemberCount() {
+        return memberCount;
+    }
+    
+    public int getPathLength() {
+        return pathLength;
+    }
+    
+    public int getExposedNodes() {
+        return exposedNodes;
+    }
+    
+    public int getPayloadBytes() {
+        return payloadBytes;
+    }
+    
+    @Override
+    public String toString() {
+        return type + " start=" + start + " durationNanos=" + duration + " memberCount=" + memberCount 
+                + " pathLength=" + pathLength + " exposedNodes=" + exposedNodes + " payloadBytes=" + payloadBytes;
+    }
+}
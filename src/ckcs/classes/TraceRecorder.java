@@ -0,0 +1,107 @@
+package ckcs.classes;
+
+import ckcs.interfaces.TraceSink;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//A continuous recording -- keeps the last `capacity` events in a ring and a latency histogram per event type,
+//dump() writes the ring out oldest first, one event per line, to line up with a latency spike after the fact
+//recording is a counter increment and an array store, no lock
+public class TraceRecorder implements TraceSink {
+    
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    
+    final private AtomicReferenceArray<TraceEvent> ring;
+    final private AtomicLong next;
+    final private Map<TraceEvent.Type, LatencyHistogram> histograms;
+    
+    public TraceRecorder(int capacity) {
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.next = new AtomicLong();
+        this.histograms = new EnumMap<>(TraceEvent.Type.class);
+        for (TraceEvent.Type type : TraceEvent.Type.values()) {
+            histograms.put(type, new LatencyHistogram());
+        }
+    }
+    
+    //installs this recorder as THE sink, replacing any other
+    public void start() {
+        TraceEvent.setSink(this);
+    }
+    
+    public void stop() {
+        if (TraceEvent.getSink() == this) {
+            TraceEvent.setSink(null);
+        }
+    }
+    
+    @Override
+    public void commit(TraceEvent event) {
+        ring.set((int)(next.getAndIncrement() % ring.length()), event);
+        histograms.get(event.getType()).record(event.getDurationNanos());
+    }
+    
+    public LatencyHistogram getHistogram(TraceEvent.Type type) {
+        return histograms.get(type);
+    }
+    
+    //events still in the ring, oldest first -- events committed meanwhile may or may not be in it
+    public List<TraceEvent> events() {
+        long end = next.get();
+        long begin = Math.max(0, end - ring.length());
+        List<TraceEvent> events = new ArrayList<>((int)(end - begin));
+        for (long i = begin; i < end; i++) {
+            TraceEvent event = ring.get((int)(i % ring.length()));
+            if (event != null) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+    
+    public void dump(Writer writer) throws IOException {
+        for (TraceEvent event : events()) {
+            writer.write(event.toString());
+            writer.write('\n');
+        }
+        for (Map.Entry<TraceEvent.Type, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (histogram.getCount() > 0) {
+                writer.write("summary " + entry.getKey() + " count=" + histogram.getCount() 
+                        + " p50Micros=" + histogram.getP50Micros() + " p99Micros=" + histogram.getP99Micros() 
+                        + " maxMicros=" + histogram.getMaxMicros() + "\n");
+            }
+        }
+        writer.flush();
+    }
+    
+    //-Dckcs.trace=<file>
+    static void dumpOnExit(final String file) {
+        final TraceRecorder recorder = new TraceRecorder(DEFAULT_CAPACITY);
+        recorder.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                recorder.stop();
+                try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(file), StandardCharsets.UTF_8))) {
+                    recorder.dump(writer);
+                } catch (IOException ex) {
+                    Logger.getLogger(TraceRecorder.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }));
+    }
+}
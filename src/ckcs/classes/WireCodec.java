@@ -0,0 +1,156 @@
+package ckcs.classes;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+//Binary wire format shared by GroupController and GroupMember
+//every connection starts with a header: VERSION (1 byte) + request code (4 bytes)
+//IDs are fixed width (UUID = two longs), nonces are ints, byte arrays and strings are length-prefixed
+//signed public keys are sent raw -- X.509 encoded key + trusted signature -- no java serialization
+public final class WireCodec {
+
+    public static final byte VERSION = 1;
+    //upper bound on any length prefix read off the wire, so a bad peer can't make us allocate GBs
+    public static final int MAX_LENGTH = 1 << 24;
+
+    private WireCodec() {
+    }
+
+    public static void writeHeader(final DataOutputStream out, final int requestCode) throws IOException {
+        out.writeByte(VERSION);
+        out.writeInt(requestCode);
+    }
+
+    //returns the request code, throws if the peer speaks a different version
+    public static int readHeader(final DataInputStream in) throws IOException {
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported wire version: " + version);
+        }
+        return in.readInt();
+    }
+
+    //same as readHeader, but returns -1 instead of throwing when the peer has closed the connection
+    public static int readHeaderOrEnd(final DataInputStream in) throws IOException {
+        int version = in.read();
+        if (version == -1) {
+            return -1;
+        }
+        if (version != VERSION) {
+            throw new IOException("Unsupported wire version: " + version);
+        }
+        return in.readInt();
+    }
+
+    public static void writeUUID(final DataOutputStream out, final UUID id) throws IOException {
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+    }
+
+    public static UUID readUUID(final DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    public static void writeBytes(final DataOutputStream out, final byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static byte[] readBytes(final DataInputStream in) throws IOException {
+        byte[] bytes = new byte[checkLength(in.readInt())];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    public static void writeAddress(final DataOutputStream out, final InetAddress address) throws IOException {
+        byte[] raw = address.getAddress();
+        out.writeByte(raw.length);
+        out.write(raw);
+    }
+
+    public static InetAddress readAddress(final DataInputStream in) throws IOException {
+        int length = in.readUnsignedByte();
+        if (length != 4 && length != 16) {
+            throw new IOException("Bad address length: " + length);
+        }
+        byte[] raw = new byte[length];
+        in.readFully(raw);
+        return InetAddress.getByAddress(raw);
+    }
+
+    public static void writeSignedKey(final DataOutputStream out, final Security.SignedKey signed) throws IOException {
+        writeBytes(out, signed.getEncodedKey());
+        writeBytes(out, signed.getSignature());
+    }
+
+    public static Security.SignedKey readSignedKey(final DataInputStream in) throws IOException {
+        byte[] encodedKey = readBytes(in);
+        byte[] signature = readBytes(in);
+        return new Security.SignedKey(encodedKey, signature);
+    }
+
+    //---- ByteBuffer variants, for payloads that get encrypted as one block ----
+
+    public static void putUUID(final ByteBuffer buffer, final UUID id) {
+        buffer.putLong(id.getMostSignificantBits());
+        buffer.putLong(id.getLeastSignificantBits());
+    }
+
+    public static UUID getUUID(final ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    public static void putAddress(final ByteBuffer buffer, final InetAddress address) {
+        byte[] raw = address.getAddress();
+        buffer.put((byte)raw.length);
+        buffer.put(raw);
+    }
+
+    public static InetAddress getAddress(final ByteBuffer buffer) throws IOException {
+        int length = buffer.get() & 0xFF;
+        if (length != 4 && length != 16) {
+            throw new IOException("Bad address length: " + length);
+        }
+        byte[] raw = new byte[length];
+        buffer.get(raw);
+        return InetAddress.getByAddress(raw);
+    }
+
+    public static int addressSize(final InetAddress address) {
+        return 1 + address.getAddress().length;
+    }
+
+    //strings here are node codes -- short ascii digit strings
+    public static void putString(final ByteBuffer buffer, final String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short)bytes.length);
+        buffer.put(bytes);
+    }
+
+    public static String getString(final ByteBuffer buffer) throws IOException {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length > buffer.remaining()) {
+            throw new EOFException("String length exceeds buffer");
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    public static int stringSize(final String value) {
+        return 2 + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static int checkLength(final int length) throws IOException {
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("Length prefix out of range: " + length);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,36 @@
+package ckcs.interfaces;
+
+//JMX counters and gauges of a GroupController, its latency histograms are registered next to it
+//(same name, one histogram=... key each)
+public interface ControllerMetricsMBean {
+    
+    //---- counters, since the controller started ----
+    public long getBytesSent();
+    
+    public long getConnectionsOpened();
+    
+    public long getFailedSends();
+    
+    //every AES encrypt/decrypt in this JVM, not just this controller's
+    public long getAesOperations();
+    
+    public long getMembersSkipped();
+    
+    //requests shed by a full lane or over their member's rate limit
+    public long getRequestsRejected();
+    
+    //---- gauges ----
+    public int getMemberCount();
+    
+    public int getTreeDepth();
+    
+    //frames waiting in all the members' outbound queues
+    public int getQueueDepth();
+    
+    public int getPendingJoins();
+    
+    //admitted requests waiting for their lane
+    public int getQueuedRequests();
+    
+    public long getKeyEpoch();
+}
@@ -0,0 +1,28 @@
+package ckcs.interfaces;
+
+//the reactive streams interfaces, as java.util.concurrent.Flow has them from JDK 9 on -- same methods,
+//same rules (onSubscribe first, then onNext at most as many times as requested, one signal at a time,
+//then onComplete or onError) so on a newer JDK a Flow adapter is a one-line delegation per method
+public interface Flow {
+
+    public interface Publisher<T> {
+        public void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T> {
+        public void onSubscribe(Subscription subscription);
+
+        public void onNext(T item);
+
+        public void onError(Throwable throwable);
+
+        public void onComplete();
+    }
+
+    public interface Subscription {
+        //n more items may be sent, n <= 0 is an error signalled to the subscriber
+        public void request(long n);
+
+        public void cancel();
+    }
+}
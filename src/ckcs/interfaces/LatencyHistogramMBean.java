@@ -0,0 +1,22 @@
+package ckcs.interfaces;
+
+//JMX view of one latency histogram -- every value is in microseconds
+public interface LatencyHistogramMBean {
+    
+    public long getCount();
+    
+    public double getMeanMicros();
+    
+    public long getMaxMicros();
+    
+    public long getP50Micros();
+    
+    public long getP90Micros();
+    
+    public long getP99Micros();
+    
+    public long getP999Micros();
+    
+    //starts a new measuring interval
+    public void reset();
+}
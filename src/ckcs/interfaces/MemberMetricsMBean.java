@@ -0,0 +1,21 @@
+package ckcs.interfaces;
+
+//JMX counters and gauges of a GroupMember, its latency histograms are its MemberHost's
+public interface MemberMetricsMBean {
+    
+    public long getBytesSent();
+    
+    public long getConnectionsOpened();
+    
+    public long getFailedSends();
+    
+    //every AES encrypt/decrypt in this JVM, not just this member's
+    public long getAesOperations();
+    
+    public boolean isConnected();
+    
+    public long getKeyEpoch();
+    
+    //messages waiting for a key update that hasn't reached us yet
+    public int getHeldMessages();
+}
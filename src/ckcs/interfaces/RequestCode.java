@@ -7,7 +7,7 @@ public interface RequestCode {
     //keyServer sends serverID + Nonce N1 
     //member sends Nonce N1 + memID + Nonce N2 + port + address
     //keyServer and member start ECDH Key Agreement
-    //keyServer encrypts sends port + Nonce N2 + memID + rootCode
+    //keyServer encrypts sends port + Nonce N2 + memID + rootCode [+ data plane port + address, if it runs one]
     //keyServer addsMember
     //keyServer encrypts sends parentCode + multiCast group address + port
     //member encrypts sends parentCode
@@ -24,16 +24,111 @@ public interface RequestCode {
     final static int KEY_UPDATE_JOIN = 4;
     //to multicast to all members to update ON MEMBER JOIN
     //hash update their group keys
+    //carries the target key epoch, joins close together share one notification --
+    //members hash once per epoch they are behind
     
     final static int KEY_UPDATE_LEAVE = 8;
     //to multicast to all members to prepare for key update on leave,
     //have them stop listening to multicast group/port and temporarily leave the group?
     //server can then individually send each member which port to listen too so to receive
     //new encrypted group key via multicast
+    //carries key epoch + the member's parentCode as a delta from the last one it was sent (-1 if unchanged,
+    //else characters to keep + new suffix) + the level of the key the new GK is encrypted under + the GK
     
     
     final static int SEND_MESSAGE = 16;
+    //member sends memID + message encrypted under its own key, prefixed by the member's send sequence number
+    
     final static int RECEIVE_MESSAGE = 32;
+    //keyServer sends a batch of messages (sender ID + message each) encrypted once under the GK
+    //prefixed by the key epoch of that GK, members keep a ring of recent GKs to decrypt it with
+    
     final static int FORCE_REMOVE = 64;
     
+    //---------- CLUSTER (controller node <-> coordinator) ---------
+    //one persistent connection per node, after the same signed key + ECDH handshake as a join
+    //every frame after that is encrypted under the node's session key
+    final static int CLUSTER_REGISTER = 128;
+    //node sends CLUSTER_REGISTER + its signed key, both sides run ECDH
+    //coordinator sends nodeID + rootCode for the node's subtree + current epoch + GK
+    
+    final static int ROOT_KEY_JOIN = 256;
+    //node asks for a join epoch -- coordinator hashes the GK, bumps the epoch
+    //and sends epoch + originating nodeID to EVERY node, in the one order all nodes apply them in
+    
+    final static int ROOT_KEY_LEAVE = 512;
+    //node asks for a leave epoch -- coordinator generates a new GK, bumps the epoch
+    //and sends epoch + originating nodeID + new GK to EVERY node
+    
+    final static int CLUSTER_RELAY = 1024;
+    //node sends a batch of group messages from its members,
+    //coordinator passes it on (with the originating nodeID) to every OTHER node
+    
+    //---------- STANDBY (primary controller -> standby controller) ---------
+    //one persistent connection, same handshake as CLUSTER_REGISTER, frames encrypted under the session key
+    //every frame from the primary starts with its sequence number
+    final static int STANDBY_REGISTER = 2048;
+    //standby sends STANDBY_REGISTER + its signed key, both sides run ECDH
+    //primary sends a snapshot: serverID + epoch + the whole tree + every member's port and address
+    
+    final static int REPLICA_JOIN = 4096;
+    //primary sends the new epoch + memberID, member key, port and address of each member in a join batch
+    
+    final static int REPLICA_LEAVE = 8192;
+    //primary sends the new epoch + memberID of the leaving member + the new GK
+    
+    final static int REPLICA_HEARTBEAT = 16384;
+    //primary sends one when it has had nothing else to send for a while, a silent primary is a dead one
+    
+    final static int REPLICA_ACK = 32768;
+    //standby sends the sequence number of the last frame it has applied
+    
+    final static int FAILOVER = 65536;
+    //the standby took over -- sent to every member, encrypted under the MEMBER'S key:
+    //new epoch + the new controller's port and address + the new GK
+    
+    //---------- STREAMS (large group messages, chunk by chunk) ---------
+    final static int SEND_STREAM = 131072;
+    //member sends memID, then sealed chunks under its own key (see StreamChunk) until one flagged last
+    //the connection stays open for the whole stream, the controller relays each chunk as it comes in
+    
+    final static int RECEIVE_STREAM = 262144;
+    //keyServer sends key epoch + sender ID + one chunk re-sealed under that epoch's GK
+    //a stream the controller stops hearing from ends with an empty chunk flagged aborted
+    
+    //---------- DATA PLANE (member -> group, never through the controller) ---------
+    final static int GROUP_DATAGRAM = 524288;
+    //member multicasts key epoch + its message (sender ID + its datagram sequence number + message, encrypted
+    //and MACed under that epoch's GK)
+    //to the data plane address it was given on join, see DataPlane
+    
+    //---------- COMPRESSION ---------
+    final static int COMPRESSED = 1 << 30;
+    //a flag, OR'ed into the request code of the header:
+    //on REQUEST_JOIN the member can take compressed messages,
+    //on RECEIVE_MESSAGE the batch was deflated before it was encrypted (see Compression)
+    
+    final static int COMPRESSION_DICTIONARY = 1048576;
+    //keyServer sends the preset dictionary it compresses with, encrypted under the MEMBER'S key,
+    //before any message that needs it -- only to members that joined with COMPRESSED
+    
+    //---------- ADMISSION (keyServer's first reply to REQUEST_JOIN, REQUEST_LEAVE, SEND_MESSAGE, SEND_STREAM, SEND_SUBTREE) ---------
+    //requests wait in a lane per request type, see RequestScheduler -- the reply comes when the request starts
+    final static int REQUEST_ADMITTED = 2097152;
+    //the request goes ahead as described above
+    
+    final static int REJECT_OVERLOADED = 4194304;
+    //its lane is full, the request was shed -- try again later, the connection is closed
+    
+    final static int REJECT_RATE_LIMITED = 8388608;
+    //the member is over its message rate limit, the message was dropped unread
+    
+    //---------- SUBTREE MESSAGES (to the members under one middle node only) ---------
+    final static int SEND_SUBTREE = 16777216;
+    //member sends memID + encrypted nodeCode + message under its own key
+    
+    final static int RECEIVE_SUBTREE = 33554432;
+    //keyServer sends key epoch + nodeCode + sender ID and message encrypted ONCE under that node's middle key
+    //(middleKeyCalculation of the epoch's GK and nodeCode) -- only to the members under the node
+    
 }
@@ -0,0 +1,14 @@
+package ckcs.interfaces;
+
+import java.util.UUID;
+
+//receives the group's streamed messages as they arrive, chunk by chunk, see GroupMember.sendStream
+//called on the member's frame handler, one call at a time -- a slow listener holds up the member's key updates
+public interface StreamListener {
+
+    //chunks of one stream come in order, last is set on the final one
+    public void onChunk(UUID sender, long streamID, byte[] data, boolean last);
+
+    //the stream broke off -- the sender gave up, or a chunk went missing -- nothing more of it will come
+    public void onBroken(UUID sender, long streamID);
+}
@@ -0,0 +1,10 @@
+package ckcs.interfaces;
+
+import ckcs.classes.TraceEvent;
+
+public interface TraceSink {
+    
+    //called on the thread that did the work, right after it -- must be quick and must not block
+    //the event is not reused, a sink may keep it
+    public void commit(TraceEvent event);
+}
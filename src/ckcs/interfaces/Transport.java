@@ -0,0 +1,32 @@
+package ckcs.interfaces;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+
+//How GroupController and GroupMember reach each other -- TcpTransport is a socket per connection as always,
+//LoopbackTransport connects the two inside one JVM without the kernel (or real ports) in between
+//the wire format is the same either way, the transport only moves the bytes
+public interface Transport {
+    
+    //a listener on port, like a bound ServerSocket
+    public Listener listen(int port) throws IOException;
+    
+    //timeoutMillis of 0 waits as long as it takes
+    public Connection connect(InetAddress address, int port, int timeoutMillis) throws IOException;
+    
+    public interface Listener extends Closeable {
+        //blocks until a connection comes in, throws once the listener is closed
+        public Connection accept() throws IOException;
+    }
+    
+    //closing either stream closes the connection, as with a socket
+    public interface Connection extends Closeable {
+        //buffered already, flush() to send
+        public DataOutputStream getOutput() throws IOException;
+        
+        public DataInputStream getInput() throws IOException;
+    }
+}